@@ -2,11 +2,15 @@ package app.preach.gospel;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.web.servlet.ServletComponentScan;
+import org.springframework.context.annotation.Bean;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 import app.preach.gospel.common.ProjectConstants;
+import app.preach.gospel.nlp.LyricIndexWarmer;
 
 /**
  * Projectアプリケーション
@@ -16,6 +20,7 @@ import app.preach.gospel.common.ProjectConstants;
  */
 @SpringBootApplication
 @ServletComponentScan
+@EnableScheduling
 public class NASB1995Application4 {
 
 	private static final Logger log = LogManager.getLogger(NASB1995Application4.class);
@@ -25,4 +30,17 @@ public class NASB1995Application4 {
 		log.info(ProjectConstants.MESSAGE_SPRING_APPLICATION);
 	}
 
+	/**
+	 * 起動時に歌詞転置インデックスをウォームアップする
+	 * <p>
+	 * KOMORANの辞書モデルの読み込みを含むため、コンテキストの起動を妨げないようバックグラウンドで実行する。完了するまで検索は名称一致のみで応答する。
+	 *
+	 * @param lyricIndexWarmer ウォームアップ
+	 * @return ApplicationRunner
+	 */
+	@Bean
+	protected ApplicationRunner lyricIndexWarmUp(final LyricIndexWarmer lyricIndexWarmer) {
+		return args -> lyricIndexWarmer.warmUpAsync();
+	}
+
 }
@@ -38,7 +38,7 @@ public class SpringSecurityConfiguration {
 	private static final String[] IGNORANCE_PATHS = { "/home/index", "/home/page", "/home/to-home-page",
 			"/home/to-login-with-error", "/error-page2", "/static/**", "/swagger-ui/**", "/v3/api-docs/**",
 			"/hymns/pagination", "/hymns/get-info-id", "/hymns/get-records", "/hymns/kanumi-retrieve",
-			"/hymns/random-retrieve", "/hymns/score-download" };
+			"/hymns/random-retrieve", "/hymns/related", "/hymns/score-download", "/actuator/health/**" };
 
 	private static final Logger log = LogManager.getLogger(SpringSecurityConfiguration.class);
 
@@ -1,18 +1,26 @@
 package app.preach.gospel.config;
 
 import java.time.Duration;
+import java.util.List;
 
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.annotation.Order;
 import org.springframework.lang.NonNull;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.servlet.config.annotation.ViewControllerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 
+import app.preach.gospel.dto.DocKey;
+import app.preach.gospel.dto.RankedEntry;
+import app.preach.gospel.dto.TokKey;
+
 /**
  * SpringMVC配置クラス
  *
@@ -22,6 +30,45 @@ import com.github.benmanes.caffeine.cache.Caffeine;
 @Configuration
 public class SpringWebMvcConfiguration implements WebMvcConfigurer {
 
+	/**
+	 * 文字列の概算バイト数を取得する（オブジェクトヘッダーと配列を含む）
+	 *
+	 * @param text 文字列
+	 * @return バイト数
+	 */
+	private static long estimateBytes(final String text) {
+		return text == null ? 0L : 40L + 2L * text.length();
+	}
+
+	/**
+	 * 検索結果キャッシュの重みを計算する
+	 *
+	 * @param key   キー
+	 * @param value 検索結果キャッシュのエントリ
+	 * @return 概算バイト数
+	 */
+	private static int weighResults(final DocKey key, final RankedEntry value) {
+		final long bytes = 96L + estimateBytes(key.keyword()) + estimateBytes(value.corpusVersion()) + 16L
+				+ 8L * value.page().ids().length + 16L + value.page().lineNumbers().length;
+		return (int) Math.min(bytes, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * 形態素キャッシュの重みを計算する
+	 *
+	 * @param key   キー
+	 * @param value 形態素リスト
+	 * @return 概算バイト数
+	 */
+	private static int weighTokens(final TokKey key, final List<String> value) {
+		// 形態素文字列はKOMORANが入力から切り出した新しい文字列のため、参照と文字列の両方を数える
+		long bytes = 56L + estimateBytes(key.text());
+		for (final String token : value) {
+			bytes += 8L + estimateBytes(token);
+		}
+		return (int) Math.min(bytes, Integer.MAX_VALUE);
+	}
+
 //	/**
 //	 * 静的なリソースのマッピングを設定する
 //	 *
@@ -58,12 +105,58 @@ public class SpringWebMvcConfiguration implements WebMvcConfigurer {
 //		converters.add(1, messageConverter);
 //	}
 
-	// @Configuration
+	/**
+	 * 自然言語処理のバックグラウンド処理用エグゼキューター
+	 *
+	 * @return ThreadPoolTaskExecutor
+	 */
+	@Bean
+	@Qualifier("nlpExecutor")
+	protected ThreadPoolTaskExecutor nlpExecutor() {
+		final var executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(Runtime.getRuntime().availableProcessors());
+		executor.setMaxPoolSize(Runtime.getRuntime().availableProcessors());
+		executor.setQueueCapacity(256);
+		executor.setThreadNamePrefix("nlp-");
+		executor.setDaemon(true);
+		return executor;
+	}
+
+	/**
+	 * 検索結果キャッシュ（検索条件 → 1ページ分の順位）
+	 * <p>
+	 * エントリはコーパスバージョンが変わっても最大許容期間までは残し、再計算中の応答に使う。
+	 *
+	 * @param maxSize      容量（バイト）
+	 * @param maxStaleness 最大許容期間
+	 * @return Cache<DocKey, RankedEntry>
+	 */
+	@Order(16)
+	@Bean
+	@Qualifier("resultCache")
+	protected Cache<DocKey, RankedEntry> resultCache(
+			@Value("${nlp.cache.results.max-size:4MB}") final DataSize maxSize,
+			@Value("${nlp.cache.results.max-staleness:PT3H}") final Duration maxStaleness) {
+		return Caffeine.newBuilder().maximumWeight(maxSize.toBytes())
+				.weigher(SpringWebMvcConfiguration::weighResults).expireAfterWrite(maxStaleness).recordStats()
+				.build();
+	}
+
+	/**
+	 * 形態素キャッシュ（クエリテキスト → 形態素リスト）
+	 *
+	 * @param maxSize 容量（バイト）
+	 * @param ttl     有効期間
+	 * @return Cache<TokKey, List<String>>
+	 */
 	@Order(15)
 	@Bean
-	@Qualifier("nlpCache")
-	protected Cache<Object, Object> nlpCache() {
-		return Caffeine.newBuilder().maximumSize(3300).expireAfterWrite(Duration.ofHours(3L)).recordStats().build();
+	@Qualifier("tokenCache")
+	protected Cache<TokKey, List<String>> tokenCache(
+			@Value("${nlp.cache.tokens.max-size:16MB}") final DataSize maxSize,
+			@Value("${nlp.cache.tokens.ttl:PT3H}") final Duration ttl) {
+		return Caffeine.newBuilder().maximumWeight(maxSize.toBytes())
+				.weigher(SpringWebMvcConfiguration::weighTokens).expireAfterWrite(ttl).recordStats().build();
 	}
 
 }
@@ -186,6 +186,9 @@ public final class HymnsController {
 	@Operation(summary = "情報検索", description = "情報一覧画面初期表示する")
 	public @NotNull ResponseEntity<Pagination<HymnDto>> pagination(@RequestParam final Integer pageNum,
 			@RequestParam(required = false, defaultValue = CoStringUtils.EMPTY_STRING) final String keyword) {
+		if (pageNum == null || pageNum < 1) {
+			return ResponseEntity.badRequest().build();
+		}
 		final CoResult<Pagination<HymnDto>, DataAccessException> hymnsByKeyword = this.iHymnService
 				.getHymnsInfoByPagination(pageNum, keyword);
 		if (!hymnsByKeyword.isOk()) {
@@ -214,6 +217,24 @@ public final class HymnsController {
 		return ResponseEntity.ok(hymnDtos);
 	}
 
+	/**
+	 * 歌詞の似ている賛美歌を検索する
+	 *
+	 * @param id ID
+	 * @return ResponseEntity<List<HymnDto>>
+	 */
+	@GetMapping("/related")
+	@ResponseBody
+	@Operation(summary = "情報検索", description = "歌詞の似ている賛美歌を検索する")
+	public @NotNull ResponseEntity<List<HymnDto>> related(@RequestParam final Long id) {
+		final CoResult<List<HymnDto>, DataAccessException> relatedHymns = this.iHymnService.getRelatedHymns(id);
+		if (!relatedHymns.isOk()) {
+			throw relatedHymns.getErr();
+		}
+		final var hymnDtos = relatedHymns.getData();
+		return ResponseEntity.ok(hymnDtos);
+	}
+
 	/**
 	 * 情報追加画面へ移動する
 	 *
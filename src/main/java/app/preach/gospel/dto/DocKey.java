@@ -4,6 +4,11 @@ import java.io.Serializable;
 
 /**
  * Docキー
+ * <p>
+ * コーパスバージョンを含めず、バージョンが変わっても直前の結果を再計算中に返せるようにする。
+ *
+ * @param keyword キーワード
+ * @param pageNum ページ番号
  */
-public record DocKey(String keyword, String corpusVersion, Long suryo) implements Serializable {
+public record DocKey(String keyword, Integer pageNum) implements Serializable {
 }
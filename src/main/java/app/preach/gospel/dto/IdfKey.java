@@ -1,7 +0,0 @@
-package app.preach.gospel.dto;
-
-/**
- * IDFキー
- */
-public record IdfKey(String[] corpusVersion) {
-}
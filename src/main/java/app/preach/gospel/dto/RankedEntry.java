@@ -0,0 +1,13 @@
+package app.preach.gospel.dto;
+
+import java.io.Serializable;
+
+/**
+ * 検索結果キャッシュのエントリ
+ *
+ * @param page          検索結果の順位
+ * @param corpusVersion 計算時のコーパスバージョン
+ * @param rankedAt      計算時刻（エポックミリ秒）
+ */
+public record RankedEntry(RankedPage page, String corpusVersion, long rankedAt) implements Serializable {
+}
@@ -0,0 +1,12 @@
+package app.preach.gospel.dto;
+
+import java.io.Serializable;
+
+/**
+ * 検索結果の1ページ分の順位
+ *
+ * @param ids         賛美歌ID（順位順）
+ * @param lineNumbers ラインナンバーの序数（順位順）
+ */
+public record RankedPage(long[] ids, byte[] lineNumbers) implements Serializable {
+}
@@ -5,5 +5,5 @@ import java.io.Serializable;
 /**
  * トークンキー
  */
-public record TokKey(String lang, String tokenizer, String textHash) implements Serializable {
+public record TokKey(String lang, String tokenizer, String text) implements Serializable {
 }
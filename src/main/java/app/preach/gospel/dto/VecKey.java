@@ -1,7 +0,0 @@
-package app.preach.gospel.dto;
-
-/**
- * ベクターキー
- */
-public record VecKey(String lang, String hymnalVersion, String textHash) {
-}
@@ -1,6 +1,7 @@
 package app.preach.gospel.listener;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -11,6 +12,10 @@ import org.springframework.stereotype.Component;
 
 import com.github.benmanes.caffeine.cache.Cache;
 
+import app.preach.gospel.dto.DocKey;
+import app.preach.gospel.dto.RankedEntry;
+import app.preach.gospel.dto.TokKey;
+
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
@@ -26,26 +31,36 @@ public class ProjectLogoutSuccessHandler implements LogoutSuccessHandler {
 	private static final Logger log = LogManager.getLogger(ProjectLogoutSuccessHandler.class);
 
 	/**
-	 * キャッシュ
+	 * 検索結果キャッシュ
+	 */
+	private final Cache<DocKey, RankedEntry> resultCache;
+
+	/**
+	 * 形態素キャッシュ
 	 */
-	private final Cache<Object, Object> nlpCache;
+	private final Cache<TokKey, List<String>> tokenCache;
 
 	/**
 	 * コンストラクタ
 	 *
-	 * @param nlpCache キャッシュ
+	 * @param resultCache 検索結果キャッシュ
+	 * @param tokenCache  形態素キャッシュ
 	 */
-	public ProjectLogoutSuccessHandler(@Qualifier("nlpCache") final Cache<Object, Object> nlpCache) {
-		this.nlpCache = nlpCache;
+	public ProjectLogoutSuccessHandler(@Qualifier("resultCache") final Cache<DocKey, RankedEntry> resultCache,
+			@Qualifier("tokenCache") final Cache<TokKey, List<String>> tokenCache) {
+		this.resultCache = resultCache;
+		this.tokenCache = tokenCache;
 	}
 
 	@Override
 	public void onLogoutSuccess(final HttpServletRequest request, final HttpServletResponse response,
 			final Authentication authentication) throws IOException {
 		// 🔥 清空缓存
-		this.nlpCache.invalidateAll();
+		this.resultCache.invalidateAll();
+		this.tokenCache.invalidateAll();
 		// 如有需要可打印统计信息
-		log.info("Caffeine stats: {}", this.nlpCache.stats());
+		log.info("Caffeine stats [results]: {}", this.resultCache.stats());
+		log.info("Caffeine stats [tokens]: {}", this.tokenCache.stats());
 		// ホームページへの遷移
 		response.sendRedirect("/home/index");
 	}
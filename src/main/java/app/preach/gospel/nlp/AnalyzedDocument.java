@@ -0,0 +1,68 @@
+package app.preach.gospel.nlp;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 解析済み文書
+ * <p>
+ * 一度の解析で得た形態素ID（昇順・重複なし）と出現頻度を並べて保持する。形態素ID配列がそのまま文書頻度への寄与となり、出現頻度配列がTFベクトルとなる。
+ *
+ * @param termIds     形態素ID配列（昇順・重複なし）
+ * @param frequencies 出現頻度配列（形態素IDと同じ並び）
+ * @param length      形態素の総数
+ * @author ArkamaHozota
+ */
+public record AnalyzedDocument(int[] termIds, int[] frequencies, int length) {
+
+	/**
+	 * 空の文書
+	 */
+	public static final AnalyzedDocument EMPTY = new AnalyzedDocument(new int[0], new int[0], 0);
+
+	/**
+	 * トークン順の形態素ID配列から作成する
+	 *
+	 * @param tokenTermIds 形態素ID配列（トークン順・重複あり）
+	 * @return AnalyzedDocument
+	 */
+	public static @NotNull AnalyzedDocument of(final int @NotNull [] tokenTermIds) {
+		if (tokenTermIds.length == 0) {
+			return EMPTY;
+		}
+		final int[] sorted = tokenTermIds.clone();
+		Arrays.sort(sorted);
+		final var termIds = new int[sorted.length];
+		final var frequencies = new int[sorted.length];
+		var size = 0;
+		for (final int termId : sorted) {
+			if (size > 0 && termIds[size - 1] == termId) {
+				frequencies[size - 1]++;
+			} else {
+				termIds[size] = termId;
+				frequencies[size++] = 1;
+			}
+		}
+		return new AnalyzedDocument(Arrays.copyOf(termIds, size), Arrays.copyOf(frequencies, size), sorted.length);
+	}
+
+	/**
+	 * 空かどうかを判断する
+	 *
+	 * @return true/false
+	 */
+	public boolean isEmpty() {
+		return this.termIds.length == 0;
+	}
+
+	/**
+	 * 異なり形態素数を取得する
+	 *
+	 * @return 形態素数
+	 */
+	public int size() {
+		return this.termIds.length;
+	}
+
+}
@@ -0,0 +1,69 @@
+package app.preach.gospel.nlp;
+
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+
+import app.preach.gospel.dto.DocKey;
+import app.preach.gospel.dto.RankedEntry;
+import app.preach.gospel.dto.TokKey;
+
+/**
+ * キャッシュ統計の定期出力
+ * <p>
+ * 形態素キャッシュと検索結果キャッシュのヒット、ミス、追い出しの件数を階層毎にログへ出力する。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class CacheStatsLogger {
+
+	/**
+	 * ログ
+	 */
+	private static final Logger log = LogManager.getLogger(CacheStatsLogger.class);
+
+	/**
+	 * 検索結果キャッシュ
+	 */
+	private final Cache<DocKey, RankedEntry> resultCache;
+
+	/**
+	 * 形態素キャッシュ
+	 */
+	private final Cache<TokKey, List<String>> tokenCache;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param resultCache 検索結果キャッシュ
+	 * @param tokenCache  形態素キャッシュ
+	 */
+	public CacheStatsLogger(@Qualifier("resultCache") final Cache<DocKey, RankedEntry> resultCache,
+			@Qualifier("tokenCache") final Cache<TokKey, List<String>> tokenCache) {
+		this.resultCache = resultCache;
+		this.tokenCache = tokenCache;
+	}
+
+	/**
+	 * 統計を定期的にログへ出力する（参照のない階層は出力しない）
+	 */
+	@Scheduled(fixedDelayString = "${nlp.cache.stats-interval:PT5M}")
+	public void logStats() {
+		if (this.resultCache.stats().requestCount() > 0) {
+			log.info("Caffeine stats [results]: {}, size: {}", this.resultCache.stats(),
+					this.resultCache.estimatedSize());
+		}
+		if (this.tokenCache.stats().requestCount() > 0) {
+			log.info("Caffeine stats [tokens]: {}, size: {}", this.tokenCache.stats(),
+					this.tokenCache.estimatedSize());
+		}
+	}
+
+}
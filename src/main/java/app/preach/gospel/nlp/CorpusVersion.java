@@ -0,0 +1,162 @@
+package app.preach.gospel.nlp;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import app.preach.gospel.repository.HymnRepository;
+
+/**
+ * 賛美歌コーパスバージョン
+ * <p>
+ * 賛美歌の書き込み処理がコミット後に進めるプロセス内カウンター。検索結果キャッシュのキーに使い、
+ * キャッシュヒット時はデータベースへ問い合わせない。他ノードや直接のDB更新は定期的な突き合わせで検知し、登録された処理を呼び出す。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class CorpusVersion {
+
+	/**
+	 * ログ
+	 */
+	private static final Logger log = LogManager.getLogger(CorpusVersion.class);
+
+	/**
+	 * 他ノードや直接のDB更新を検知した場合の処理
+	 */
+	private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * 賛美歌リポジトリ
+	 */
+	private final HymnRepository hymnRepository;
+
+	/**
+	 * 最後に突き合わせた有効件数
+	 */
+	private long reconciledCount = -1L;
+
+	/**
+	 * 最後に突き合わせた最新更新時間
+	 */
+	private LocalDateTime reconciledMaxUpdatedTime;
+
+	/**
+	 * 有効な賛美歌の件数
+	 */
+	private final AtomicLong totalRecords = new AtomicLong(-1L);
+
+	/**
+	 * バージョン
+	 */
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param hymnRepository 賛美歌リポジトリ
+	 */
+	public CorpusVersion(final HymnRepository hymnRepository) {
+		this.hymnRepository = hymnRepository;
+	}
+
+	/**
+	 * 書き込み後にバージョンを進める
+	 * <p>
+	 * 突き合わせの基準も同じだけ進め、次回の突き合わせで自ノードの書き込みを他ノードの変更として検知しないようにする。
+	 *
+	 * @param countDelta  有効件数の増減
+	 * @param updatedTime 書き込んだ更新時間（論理削除の場合はnull）
+	 */
+	public synchronized void bump(final int countDelta, final LocalDateTime updatedTime) {
+		this.totalRecords.getAndUpdate(count -> count < 0 ? count : count + countDelta);
+		if (this.reconciledCount >= 0) {
+			this.reconciledCount += countDelta;
+		}
+		if (updatedTime != null && (this.reconciledMaxUpdatedTime == null
+				|| updatedTime.isAfter(this.reconciledMaxUpdatedTime))) {
+			this.reconciledMaxUpdatedTime = updatedTime;
+		}
+		this.version.incrementAndGet();
+	}
+
+	/**
+	 * 現在のバージョンを取得する
+	 *
+	 * @return バージョン文字列
+	 */
+	public String current() {
+		if (this.totalRecords.get() < 0) {
+			this.synchronize();
+		}
+		return String.valueOf(this.version.get());
+	}
+
+	/**
+	 * 他ノードや直接のDB更新を検知した場合の処理を登録する
+	 *
+	 * @param listener 処理
+	 */
+	public void onExternalChange(final @NotNull Runnable listener) {
+		this.changeListeners.add(listener);
+	}
+
+	/**
+	 * データベースと突き合わせ、差異があればバージョンを進める
+	 */
+	@Scheduled(fixedDelayString = "${nlp.corpus.reconcile-interval:PT1M}")
+	public void reconcile() {
+		try {
+			this.synchronize();
+		} catch (final DataAccessException e) {
+			log.warn("コーパスバージョンの突き合わせに失敗しました：" + e.getMessage());
+		}
+	}
+
+	/**
+	 * 有効件数と最新更新時間をデータベースから取得して反映する
+	 * <p>
+	 * 自ノードの書き込みは基準に反映済みのため、件数が異なるか更新時間が基準より新しい場合のみ外部の変更とみなす。
+	 *
+	 * @throws DataAccessException データベースエラー
+	 */
+	private synchronized void synchronize() throws DataAccessException {
+		final long count = this.hymnRepository.countByVisibleFlgTrue();
+		final LocalDateTime maxUpdatedTime = this.hymnRepository.findMaxUpdatedTime();
+		if (count == this.reconciledCount && (maxUpdatedTime == null || (this.reconciledMaxUpdatedTime != null
+				&& !maxUpdatedTime.isAfter(this.reconciledMaxUpdatedTime)))) {
+			return;
+		}
+		final boolean external = this.reconciledCount >= 0;
+		this.reconciledCount = count;
+		this.reconciledMaxUpdatedTime = maxUpdatedTime;
+		this.totalRecords.set(count);
+		this.version.incrementAndGet();
+		if (external) {
+			log.info("他ノードまたはDBの直接更新を検知しました。件数：" + count + "、最新更新時間：" + maxUpdatedTime);
+			this.changeListeners.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * 有効な賛美歌の件数を取得する
+	 *
+	 * @return 件数
+	 */
+	public long totalRecords() {
+		if (this.totalRecords.get() < 0) {
+			this.synchronize();
+		}
+		return this.totalRecords.get();
+	}
+
+}
@@ -0,0 +1,84 @@
+package app.preach.gospel.nlp;
+
+import org.jetbrains.annotations.NotNull;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * 複数クエリのスコアの統合方式
+ * <p>
+ * 統合後のスコアも{@link ScoringMode}と同じく0以上1以下に揃える。
+ *
+ * @author ArkamaHozota
+ */
+public enum FusionMode {
+
+	/**
+	 * 各クエリのスコアの最大値
+	 */
+	MAX,
+
+	/**
+	 * 各クエリの順位の逆数の和（RRF、全てのクエリで1位の場合に1となるよう正規化する）
+	 * <p>
+	 * スコアを持たない候補は、そのクエリの順位の対象としない。
+	 */
+	RRF,
+
+	/**
+	 * 各クエリのスコアの和（クエリ数で割る）
+	 */
+	SUM;
+
+	/**
+	 * 候補毎のスコアを統合する
+	 *
+	 * @param scores  候補の番号 × クエリ数 + クエリの番号 → スコア（クエリに一致しない場合は0）
+	 * @param queries クエリ数
+	 * @param rrfK    RRFの順位に加える定数
+	 * @return 候補の番号 → 統合後のスコア
+	 */
+	public double @NotNull [] combine(final double @NotNull [] scores, final int queries, final int rrfK) {
+		final int candidates = queries == 0 ? 0 : scores.length / queries;
+		final var combined = new double[candidates];
+		if (this == RRF) {
+			final var ranked = new IntArrayList(candidates);
+			for (var q = 0; q < queries; q++) {
+				final int query = q;
+				ranked.clear();
+				for (var c = 0; c < candidates; c++) {
+					if (scores[c * queries + query] > 0) {
+						ranked.add(c);
+					}
+				}
+				ranked.unstableSort((a, b) -> Double.compare(scores[b * queries + query], scores[a * queries + query]));
+				// 同点の候補は同じ順位とする
+				var rank = 0;
+				double previous = Double.POSITIVE_INFINITY;
+				for (var i = 0; i < ranked.size(); i++) {
+					final double score = scores[ranked.getInt(i) * queries + query];
+					if (score < previous) {
+						rank = i;
+						previous = score;
+					}
+					combined[ranked.getInt(i)] += 1.0 / (rrfK + rank + 1);
+				}
+			}
+			final double scale = (rrfK + 1.0) / queries;
+			for (var c = 0; c < candidates; c++) {
+				combined[c] *= scale;
+			}
+			return combined;
+		}
+		for (var c = 0; c < candidates; c++) {
+			double value = 0.00;
+			for (var q = 0; q < queries; q++) {
+				final double score = scores[c * queries + q];
+				value = this == MAX ? Math.max(value, score) : value + score;
+			}
+			combined[c] = this == SUM ? value / queries : value;
+		}
+		return combined;
+	}
+
+}
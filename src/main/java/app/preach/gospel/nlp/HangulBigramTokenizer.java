@@ -0,0 +1,43 @@
+package app.preach.gospel.nlp;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Component;
+
+/**
+ * ハングル音節バイグラムトークナイザー
+ * <p>
+ * 隣り合う二音節を索引語とする（一音節のみの場合はその音節）。辞書モデルを必要とせず、一回の走査で分割するため、
+ * 大量の文書の索引付けやメモリの少ないインスタンスに向く。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class HangulBigramTokenizer implements LyricTokenizer {
+
+	/**
+	 * トークナイザー名
+	 */
+	public static final String NAME = "BIGRAM";
+
+	@Override
+	public @NotNull String name() {
+		return NAME;
+	}
+
+	@Override
+	public @NotNull List<String> tokenize(final @NotNull String koreanText) {
+		final int length = koreanText.length();
+		if (length <= 1) {
+			return length == 0 ? List.of() : List.of(koreanText);
+		}
+		final var bigrams = new String[length - 1];
+		for (var i = 0; i < bigrams.length; i++) {
+			bigrams[i] = koreanText.substring(i, i + 2);
+		}
+		return Arrays.asList(bigrams);
+	}
+
+}
@@ -0,0 +1,229 @@
+package app.preach.gospel.nlp;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * HNSWグラフの再現率と応答時間のベンチマーク
+ * <p>
+ * ウォームアップ完了後にバックグラウンドで一度だけ実行し、結果をログへ出力する。索引済みの賛美歌の歌詞をクエリとし、
+ * 全件走査（{@link LyricInvertedIndex#score}）の上位K件を正解として、探索幅毎の再現率と応答時間を比べる。
+ * グラフは{@code nlp.hnsw.min-docs}に関係なく現在のIDFモデルから構築するため、近似検索へ切り替えるコーパスの件数を決める目安とする。
+ * クエリ数が0の場合（既定）は実行しない。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class HnswBenchmark {
+
+	/**
+	 * ログ
+	 */
+	private static final Logger log = LogManager.getLogger(HnswBenchmark.class);
+
+	/**
+	 * 昇順に並べた応答時間の百分位数を取得する
+	 *
+	 * @param sorted  応答時間（昇順）
+	 * @param percent 百分位
+	 * @return 応答時間（マイクロ秒）
+	 */
+	private static long percentile(final long @NotNull [] sorted, final int percent) {
+		final int index = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percent / 100.0) - 1);
+		return sorted[Math.max(0, index)] / 1_000L;
+	}
+
+	/**
+	 * 構築時の探索幅
+	 */
+	private final int efConstruction;
+
+	/**
+	 * 比べる検索時の探索幅
+	 */
+	private final int[] efSearches;
+
+	/**
+	 * バックグラウンド処理用エグゼキューター
+	 */
+	private final Executor executor;
+
+	/**
+	 * 歌詞転置インデックスのウォームアップ
+	 */
+	private final LyricIndexWarmer lyricIndexWarmer;
+
+	/**
+	 * 歌詞転置インデックス
+	 */
+	private final LyricInvertedIndex lyricInvertedIndex;
+
+	/**
+	 * 各層の近傍数
+	 */
+	private final int m;
+
+	/**
+	 * クエリ数（0の場合は実行しない）
+	 */
+	private final int queries;
+
+	/**
+	 * 比べる件数（K）
+	 */
+	private final int topK;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param executor           バックグラウンド処理用エグゼキューター
+	 * @param lyricIndexWarmer   歌詞転置インデックスのウォームアップ
+	 * @param lyricInvertedIndex 歌詞転置インデックス
+	 * @param queries            クエリ数（0の場合は実行しない）
+	 * @param topK               比べる件数（K）
+	 * @param efSearches         比べる検索時の探索幅
+	 * @param m                  各層の近傍数
+	 * @param efConstruction     構築時の探索幅
+	 */
+	public HnswBenchmark(@Qualifier("nlpExecutor") final Executor executor, final LyricIndexWarmer lyricIndexWarmer,
+			final LyricInvertedIndex lyricInvertedIndex, @Value("${nlp.hnsw.benchmark.queries:0}") final int queries,
+			@Value("${nlp.hnsw.benchmark.top-k:10}") final int topK,
+			@Value("${nlp.hnsw.benchmark.ef-search:16,32,64,128,256}") final int[] efSearches,
+			@Value("${nlp.hnsw.m:16}") final int m, @Value("${nlp.hnsw.ef-construction:200}") final int efConstruction) {
+		this.executor = executor;
+		this.lyricIndexWarmer = lyricIndexWarmer;
+		this.lyricInvertedIndex = lyricInvertedIndex;
+		this.queries = queries;
+		this.topK = Math.max(1, topK);
+		this.efSearches = efSearches;
+		this.m = m;
+		this.efConstruction = efConstruction;
+	}
+
+	/**
+	 * 全件走査の上位K件を求める（クエリの賛美歌自身は除く）
+	 *
+	 * @param scores 賛美歌ID → スコア
+	 * @param self   クエリの賛美歌ID
+	 * @return 上位K件の賛美歌ID
+	 */
+	private @NotNull LongOpenHashSet exactTop(final @NotNull Long2DoubleOpenHashMap scores, final long self) {
+		final long[] ids = scores.keySet().longStream().filter(id -> id != self).toArray();
+		final var collector = new TopKCollector(this.topK);
+		for (var i = 0; i < ids.length; i++) {
+			collector.collect(i, scores.get(ids[i]));
+		}
+		final var result = new LongOpenHashSet(this.topK);
+		for (final int i : collector.drain()) {
+			result.add(ids[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * ベンチマークを実行してログへ出力する
+	 */
+	public void run() {
+		if (this.lyricInvertedIndex.scoring() != ScoringMode.COSINE) {
+			log.info("HNSWグラフはコサイン類似度でのみ使うため、ベンチマークを行いません");
+			return;
+		}
+		final VectorStore vectors = this.lyricInvertedIndex.idfModel().vectors();
+		if (vectors.size() == 0) {
+			return;
+		}
+		final long start = System.nanoTime();
+		final var graph = new HnswGraph(this.m, this.efConstruction, 1L);
+		for (var ordinal = 0; ordinal < vectors.size(); ordinal++) {
+			graph.insert(vectors.idAt(ordinal), 0L, vectors.vectorAt(ordinal));
+		}
+		final long buildMillis = (System.nanoTime() - start) / 1_000_000L;
+		// 文書番号を重複なく選ぶ
+		final var random = new SplittableRandom(1L);
+		final var sampled = new IntOpenHashSet();
+		while (sampled.size() < Math.min(this.queries, vectors.size())) {
+			sampled.add(random.nextInt(vectors.size()));
+		}
+		final int[] ordinals = sampled.toIntArray();
+		final var expected = new LongOpenHashSet[ordinals.length];
+		final var exactNanos = new long[ordinals.length];
+		for (var q = 0; q < ordinals.length; q++) {
+			final long id = vectors.idAt(ordinals[q]);
+			final AnalyzedDocument query = this.lyricInvertedIndex.documentOf(id);
+			final long begin = System.nanoTime();
+			expected[q] = query == null ? new LongOpenHashSet()
+					: this.exactTop(this.lyricInvertedIndex.score(query), id);
+			exactNanos[q] = System.nanoTime() - begin;
+		}
+		Arrays.sort(exactNanos);
+		log.info("HNSWベンチマーク：文書数：" + vectors.size() + "、クエリ数：" + ordinals.length + "、K：" + this.topK + "、M："
+				+ this.m + "、efConstruction：" + this.efConstruction + "、構築時間：" + buildMillis + "ms、全件走査 p50："
+				+ percentile(exactNanos, 50) + "µs、p99：" + percentile(exactNanos, 99) + "µs");
+		for (final int efSearch : this.efSearches) {
+			final var nanos = new long[ordinals.length];
+			double recall = 0.00;
+			for (var q = 0; q < ordinals.length; q++) {
+				final long id = vectors.idAt(ordinals[q]);
+				final long begin = System.nanoTime();
+				final Long2DoubleOpenHashMap found = graph.search(vectors.vectorAt(ordinals[q]), this.topK + 1,
+						efSearch);
+				nanos[q] = System.nanoTime() - begin;
+				if (found.containsKey(id)) {
+					found.remove(id);
+				} else if (found.size() > this.topK) {
+					// 自身が含まれない場合は最も低い一件を除く
+					found.long2DoubleEntrySet().stream()
+							.min((a, b) -> Double.compare(a.getDoubleValue(), b.getDoubleValue()))
+							.ifPresent(entry -> found.remove(entry.getLongKey()));
+				}
+				if (expected[q].isEmpty()) {
+					recall += 1.0;
+					continue;
+				}
+				final long hits = expected[q].longStream().filter(found::containsKey).count();
+				recall += (double) hits / expected[q].size();
+			}
+			Arrays.sort(nanos);
+			log.info("HNSWベンチマーク：efSearch：" + efSearch + "、再現率：" + String.format("%.4f", recall / ordinals.length)
+					+ "、p50：" + percentile(nanos, 50) + "µs、p99：" + percentile(nanos, 99) + "µs");
+		}
+	}
+
+	/**
+	 * クエリ数が正の場合、ウォームアップ完了後の実行を予約する
+	 */
+	@PostConstruct
+	public void schedule() {
+		if (this.queries <= 0) {
+			return;
+		}
+		this.lyricIndexWarmer.afterWarmUp(() -> {
+			try {
+				this.executor.execute(() -> {
+					try {
+						this.run();
+					} catch (final RuntimeException e) {
+						log.warn("HNSWベンチマークに失敗しました：" + e.getMessage());
+					}
+				});
+			} catch (final RejectedExecutionException e) {
+				log.warn("HNSWベンチマークを開始できませんでした：" + e.getMessage());
+			}
+		});
+	}
+
+}
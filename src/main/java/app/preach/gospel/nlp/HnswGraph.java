@@ -0,0 +1,608 @@
+package app.preach.gospel.nlp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jetbrains.annotations.NotNull;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongComparators;
+import it.unimi.dsi.fastutil.longs.LongHeapPriorityQueue;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * 正規化済みの歌詞ベクトルのHNSWグラフ（近似最近傍探索）
+ * <p>
+ * 内積（＝コサイン類似度）の大きい文書ほど近いとみなす。各層の近傍はM件（最下層は2M件）までとし、近傍の選択にはヒューリスティックを使う。
+ * 削除は印を付けるのみで、経路としては残したまま検索結果から除く。同じ賛美歌を追加し直した場合は古いノードを削除済みにする。
+ * 追加と削除は書き込みロック、検索と保存は読み取りロックの下で行う。
+ * <p>
+ * 保存形式（ビッグエンディアン）：
+ * <ul>
+ * <li>ヘッダー：識別子、形式バージョン、M、efConstruction、ノード数、入口ノード、最上層</li>
+ * <li>形態素表：ベクトルに現れる形態素のIDと文字列（読み込み時に形態素辞書と突き合わせる）</li>
+ * <li>ノード：賛美歌ID、内容ハッシュ、削除済みフラグ、ベクトル、層毎の近傍リスト</li>
+ * </ul>
+ *
+ * @author ArkamaHozota
+ */
+public final class HnswGraph {
+
+	/**
+	 * 保存ファイル名
+	 */
+	public static final String FILE_NAME = "lyric.hnsw";
+
+	/**
+	 * ファイル形式のバージョン
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * ファイル形式の識別子
+	 */
+	private static final int MAGIC = 0x484E5357;
+
+	/**
+	 * 類似度とノードをまとめた値から類似度を取り出す
+	 *
+	 * @param encoded 類似度とノードをまとめた値
+	 * @return 類似度（単精度）
+	 */
+	private static double decode(final long encoded) {
+		final var sortable = (int) (encoded >> 32);
+		return Float.intBitsToFloat(sortable ^ sortable >> 31 & 0x7FFFFFFF);
+	}
+
+	/**
+	 * 類似度とノードを一つの値にまとめる（類似度の大小が値の大小と一致する）
+	 *
+	 * @param similarity 類似度
+	 * @param node       ノード
+	 * @return 上位32ビットが類似度、下位32ビットがノード
+	 */
+	private static long encode(final double similarity, final int node) {
+		final int bits = Float.floatToIntBits((float) similarity);
+		return (long) (bits ^ bits >> 31 & 0x7FFFFFFF) << 32 | node & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * 保存済みのグラフを読み込む
+	 *
+	 * @param file           保存ファイル
+	 * @param m              各層の近傍数
+	 * @param efConstruction 構築時の探索幅
+	 * @param termDictionary 形態素辞書
+	 * @return HnswGraph
+	 * @throws IOException 読み込めない場合、または設定か形態素辞書が一致しない場合
+	 */
+	public static @NotNull HnswGraph read(final @NotNull Path file, final int m, final int efConstruction,
+			final @NotNull TermDictionary termDictionary) throws IOException {
+		try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+				throw new IOException("HNSWグラフの形式が異なります：" + file);
+			}
+			final var graph = new HnswGraph(m, efConstruction, System.nanoTime());
+			if (input.readInt() != graph.m || input.readInt() != graph.efConstruction) {
+				throw new IOException("HNSWグラフの設定が異なります：" + file);
+			}
+			final int nodeCount = input.readInt();
+			final int entryPoint = input.readInt();
+			final int maxLevel = input.readInt();
+			final int termCount = input.readInt();
+			for (var t = 0; t < termCount; t++) {
+				final int termId = input.readInt();
+				if (termDictionary.idOf(input.readUTF()) != termId) {
+					throw new IOException("HNSWグラフの形態素IDが形態素辞書と一致しません：" + file);
+				}
+			}
+			for (var node = 0; node < nodeCount; node++) {
+				final long id = input.readLong();
+				graph.ids.add(id);
+				graph.contentHashes.add(input.readLong());
+				if (input.readBoolean()) {
+					graph.deleted.set(node);
+				} else {
+					graph.nodeOf.put(id, node);
+				}
+				final var termIds = new int[input.readInt()];
+				final var weights = new float[termIds.length];
+				for (var i = 0; i < termIds.length; i++) {
+					termIds[i] = input.readInt();
+					weights[i] = input.readFloat();
+				}
+				graph.vectors.add(termIds.length == 0 ? SparseVector.EMPTY : new SparseVector(termIds, weights));
+				final var levels = new IntArrayList[input.readInt()];
+				for (var level = 0; level < levels.length; level++) {
+					final int count = input.readInt();
+					levels[level] = new IntArrayList(count);
+					for (var i = 0; i < count; i++) {
+						final int neighbor = input.readInt();
+						if (neighbor < 0 || neighbor >= nodeCount) {
+							throw new IOException("近傍のノードが範囲外です：" + neighbor);
+						}
+						levels[level].add(neighbor);
+					}
+				}
+				graph.links.add(levels);
+			}
+			if (entryPoint >= nodeCount || entryPoint >= 0 && graph.links.get(entryPoint).length != maxLevel + 1) {
+				throw new IOException("入口ノードが不正です：" + entryPoint);
+			}
+			graph.entryPoint = entryPoint;
+			graph.maxLevel = maxLevel;
+			return graph;
+		}
+	}
+
+	/**
+	 * 内容ハッシュ（ノード毎）
+	 */
+	private final LongArrayList contentHashes = new LongArrayList();
+
+	/**
+	 * 削除済みのノード
+	 */
+	private final BitSet deleted = new BitSet();
+
+	/**
+	 * 構築時の探索幅
+	 */
+	private final int efConstruction;
+
+	/**
+	 * 入口ノード（空の場合は負の値）
+	 */
+	private int entryPoint = -1;
+
+	/**
+	 * 賛美歌ID（ノード毎）
+	 */
+	private final LongArrayList ids = new LongArrayList();
+
+	/**
+	 * 層を決める乱数の係数（1 / ln M）
+	 */
+	private final double levelFactor;
+
+	/**
+	 * 層毎の近傍リスト（ノード毎）
+	 */
+	private final ObjectArrayList<IntArrayList[]> links = new ObjectArrayList<>();
+
+	/**
+	 * 読み書きロック
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * 各層の近傍数
+	 */
+	private final int m;
+
+	/**
+	 * 最上層（空の場合は負の値）
+	 */
+	private int maxLevel = -1;
+
+	/**
+	 * 賛美歌ID → 削除されていないノード
+	 */
+	private final Long2IntOpenHashMap nodeOf = new Long2IntOpenHashMap();
+
+	/**
+	 * 層を決める乱数
+	 */
+	private final SplittableRandom random;
+
+	/**
+	 * 正規化済みのベクトル（ノード毎）
+	 */
+	private final ObjectArrayList<SparseVector> vectors = new ObjectArrayList<>();
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param m              各層の近傍数
+	 * @param efConstruction 構築時の探索幅
+	 * @param seed           層を決める乱数のシード
+	 */
+	public HnswGraph(final int m, final int efConstruction, final long seed) {
+		this.m = Math.max(2, m);
+		this.efConstruction = Math.max(this.m, efConstruction);
+		this.levelFactor = 1.0 / Math.log(this.m);
+		this.random = new SplittableRandom(seed);
+		this.nodeOf.defaultReturnValue(-1);
+	}
+
+	/**
+	 * 近傍リストを繋ぎ、上限を超えた場合はヒューリスティックで選び直す
+	 *
+	 * @param node     ノード
+	 * @param neighbor 追加する近傍
+	 * @param level    層
+	 */
+	private void connect(final int node, final int neighbor, final int level) {
+		final IntArrayList neighbors = this.links.get(node)[level];
+		if (neighbors.contains(neighbor)) {
+			return;
+		}
+		neighbors.add(neighbor);
+		final int capacity = level == 0 ? this.m * 2 : this.m;
+		if (neighbors.size() > capacity) {
+			final SparseVector vector = this.vectors.get(node);
+			final var similarities = new Int2DoubleOpenHashMap(neighbors.size());
+			neighbors.forEach(n -> similarities.put(n, vector.dot(this.vectors.get(n))));
+			final IntArrayList selected = this.selectNeighbors(similarities, capacity);
+			neighbors.clear();
+			neighbors.addAll(selected);
+		}
+	}
+
+	/**
+	 * 削除済みのノード数を取得する
+	 *
+	 * @return ノード数
+	 */
+	public int deletedCount() {
+		this.lock.readLock().lock();
+		try {
+			return this.deleted.cardinality();
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 上の層で最も近いノードを一つ求める
+	 *
+	 * @param query 正規化済みのクエリベクトル
+	 * @param start 開始ノード
+	 * @param level 層
+	 * @return ノード
+	 */
+	private int greedy(final @NotNull SparseVector query, final int start, final int level) {
+		int current = start;
+		double best = query.dot(this.vectors.get(current));
+		for (var improved = true; improved;) {
+			improved = false;
+			final IntArrayList neighbors = this.links.get(current)[level];
+			for (var i = 0; i < neighbors.size(); i++) {
+				final double similarity = query.dot(this.vectors.get(neighbors.getInt(i)));
+				if (similarity > best) {
+					best = similarity;
+					current = neighbors.getInt(i);
+					improved = true;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * 賛美歌を追加する（追加済みの場合は古いノードを削除済みにする）
+	 *
+	 * @param id          賛美歌ID
+	 * @param contentHash 内容ハッシュ
+	 * @param vector      正規化済みのベクトル（空の場合は追加しない）
+	 */
+	public void insert(final long id, final long contentHash, final @NotNull SparseVector vector) {
+		this.lock.writeLock().lock();
+		try {
+			this.removeNode(id);
+			if (vector.isEmpty()) {
+				return;
+			}
+			final int node = this.ids.size();
+			final var level = (int) (-Math.log(1.0 - this.random.nextDouble()) * this.levelFactor);
+			final var levels = new IntArrayList[level + 1];
+			for (var l = 0; l <= level; l++) {
+				levels[l] = new IntArrayList(l == 0 ? this.m * 2 + 1 : this.m + 1);
+			}
+			this.ids.add(id);
+			this.contentHashes.add(contentHash);
+			this.vectors.add(vector);
+			this.links.add(levels);
+			this.nodeOf.put(id, node);
+			if (this.entryPoint < 0) {
+				this.entryPoint = node;
+				this.maxLevel = level;
+				return;
+			}
+			int nearest = this.entryPoint;
+			for (int l = this.maxLevel; l > level; l--) {
+				nearest = this.greedy(vector, nearest, l);
+			}
+			var entryPoints = IntArrayList.of(nearest);
+			for (int l = Math.min(level, this.maxLevel); l >= 0; l--) {
+				final Int2DoubleOpenHashMap candidates = this.searchLayer(vector, entryPoints, this.efConstruction, l,
+						false);
+				final IntArrayList selected = this.selectNeighbors(candidates, this.m);
+				for (var i = 0; i < selected.size(); i++) {
+					levels[l].add(selected.getInt(i));
+					this.connect(selected.getInt(i), node, l);
+				}
+				entryPoints = new IntArrayList(candidates.keySet());
+			}
+			if (level > this.maxLevel) {
+				this.entryPoint = node;
+				this.maxLevel = level;
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 賛美歌が同じ内容で追加済みかを判断する
+	 *
+	 * @param id          賛美歌ID
+	 * @param contentHash 内容ハッシュ
+	 * @return true/false
+	 */
+	public boolean isCurrent(final long id, final long contentHash) {
+		this.lock.readLock().lock();
+		try {
+			final int node = this.nodeOf.get(id);
+			return node >= 0 && this.contentHashes.getLong(node) == contentHash;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 賛美歌を削除済みにする
+	 *
+	 * @param id 賛美歌ID
+	 */
+	public void remove(final long id) {
+		this.lock.writeLock().lock();
+		try {
+			this.removeNode(id);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 賛美歌のノードを削除済みにする（書き込みロック取得済みであること）
+	 *
+	 * @param id 賛美歌ID
+	 */
+	private void removeNode(final long id) {
+		final int node = this.nodeOf.remove(id);
+		if (node >= 0) {
+			this.deleted.set(node);
+		}
+	}
+
+	/**
+	 * 指定した賛美歌以外を削除済みにする
+	 *
+	 * @param liveIds 有効な賛美歌ID
+	 * @return 削除済みにした件数
+	 */
+	public int retainAll(final @NotNull LongSet liveIds) {
+		this.lock.writeLock().lock();
+		try {
+			final long[] stale = this.nodeOf.keySet().longStream().filter(id -> !liveIds.contains(id)).toArray();
+			for (final long id : stale) {
+				this.removeNode(id);
+			}
+			return stale.length;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 類似度の高い賛美歌を近似的に検索する
+	 *
+	 * @param query 正規化済みのクエリベクトル
+	 * @param limit 件数
+	 * @param ef    最下層の探索幅（件数より小さい場合は件数とする）
+	 * @return 賛美歌ID → コサイン類似度（グラフ構築時のIDFによる）
+	 */
+	public @NotNull Long2DoubleOpenHashMap search(final @NotNull SparseVector query, final int limit, final int ef) {
+		final var result = new Long2DoubleOpenHashMap();
+		this.lock.readLock().lock();
+		try {
+			if (this.entryPoint < 0 || query.isEmpty() || limit <= 0) {
+				return result;
+			}
+			int nearest = this.entryPoint;
+			for (int l = this.maxLevel; l > 0; l--) {
+				nearest = this.greedy(query, nearest, l);
+			}
+			final Int2DoubleOpenHashMap found = this.searchLayer(query, IntArrayList.of(nearest), Math.max(ef, limit),
+					0, true);
+			final int[] nodes = found.keySet().toIntArray();
+			IntArrays.quickSort(nodes, (a, b) -> Double.compare(found.get(b), found.get(a)));
+			for (var i = 0; i < Math.min(limit, nodes.length); i++) {
+				result.put(this.ids.getLong(nodes[i]), found.get(nodes[i]));
+			}
+			return result;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 一つの層で類似度の高いノードを探索する
+	 *
+	 * @param query       正規化済みのクエリベクトル
+	 * @param entryPoints 開始ノード
+	 * @param ef          探索幅
+	 * @param level       層
+	 * @param liveOnly    削除済みのノードを結果に含めない場合はtrue（経路としては辿る）
+	 * @return ノード → 類似度（ef件まで）
+	 */
+	private @NotNull Int2DoubleOpenHashMap searchLayer(final @NotNull SparseVector query,
+			final @NotNull IntArrayList entryPoints, final int ef, final int level, final boolean liveOnly) {
+		final var visited = new BitSet(this.ids.size());
+		// 候補は類似度の高い順、結果は低い順に取り出す
+		final var candidates = new LongHeapPriorityQueue(LongComparators.OPPOSITE_COMPARATOR);
+		final var results = new LongHeapPriorityQueue();
+		for (var i = 0; i < entryPoints.size(); i++) {
+			final int node = entryPoints.getInt(i);
+			if (!visited.get(node)) {
+				visited.set(node);
+				final long encoded = encode(query.dot(this.vectors.get(node)), node);
+				candidates.enqueue(encoded);
+				if (!liveOnly || !this.deleted.get(node)) {
+					results.enqueue(encoded);
+				}
+			}
+		}
+		while (results.size() > ef) {
+			results.dequeueLong();
+		}
+		while (!candidates.isEmpty()) {
+			final long current = candidates.dequeueLong();
+			if (results.size() >= ef && current < results.firstLong()) {
+				break;
+			}
+			final IntArrayList neighbors = this.links.get((int) current)[level];
+			for (var i = 0; i < neighbors.size(); i++) {
+				final int neighbor = neighbors.getInt(i);
+				if (visited.get(neighbor)) {
+					continue;
+				}
+				visited.set(neighbor);
+				final long encoded = encode(query.dot(this.vectors.get(neighbor)), neighbor);
+				if (results.size() < ef || encoded > results.firstLong()) {
+					candidates.enqueue(encoded);
+					if (!liveOnly || !this.deleted.get(neighbor)) {
+						results.enqueue(encoded);
+						if (results.size() > ef) {
+							results.dequeueLong();
+						}
+					}
+				}
+			}
+		}
+		final var found = new Int2DoubleOpenHashMap(results.size());
+		while (!results.isEmpty()) {
+			final long encoded = results.dequeueLong();
+			found.put((int) encoded, decode(encoded));
+		}
+		return found;
+	}
+
+	/**
+	 * 近傍をヒューリスティックで選ぶ
+	 * <p>
+	 * 類似度の高い順に、既に選んだどの近傍よりも基準のノードに近い候補のみを選ぶ。近傍が一方向に偏らず、疎な領域への経路が残る。
+	 *
+	 * @param candidates 候補のノード → 基準のノードとの類似度
+	 * @param limit      件数
+	 * @return 選んだノード
+	 */
+	private @NotNull IntArrayList selectNeighbors(final @NotNull Int2DoubleOpenHashMap candidates, final int limit) {
+		final int[] sorted = candidates.keySet().toIntArray();
+		IntArrays.quickSort(sorted, (a, b) -> Double.compare(candidates.get(b), candidates.get(a)));
+		final var selected = new IntArrayList(limit);
+		for (var i = 0; i < sorted.length && selected.size() < limit; i++) {
+			final SparseVector vector = this.vectors.get(sorted[i]);
+			final double similarity = candidates.get(sorted[i]);
+			var diverse = true;
+			for (var j = 0; j < selected.size() && diverse; j++) {
+				diverse = vector.dot(this.vectors.get(selected.getInt(j))) < similarity;
+			}
+			if (diverse) {
+				selected.add(sorted[i]);
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * 削除されていない賛美歌の件数を取得する
+	 *
+	 * @return 件数
+	 */
+	public int size() {
+		this.lock.readLock().lock();
+		try {
+			return this.nodeOf.size();
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * グラフを保存する（一時ファイルへ書き出してから置き換える）
+	 *
+	 * @param file           保存ファイル
+	 * @param termDictionary 形態素辞書
+	 * @throws IOException 書き出せない場合
+	 */
+	public void write(final @NotNull Path file, final @NotNull TermDictionary termDictionary) throws IOException {
+		this.lock.readLock().lock();
+		try {
+			final var termIds = new IntOpenHashSet();
+			this.vectors.forEach(vector -> {
+				for (var i = 0; i < vector.size(); i++) {
+					termIds.add(vector.termIdAt(i));
+				}
+			});
+			final Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+				output.writeInt(MAGIC);
+				output.writeInt(FORMAT_VERSION);
+				output.writeInt(this.m);
+				output.writeInt(this.efConstruction);
+				output.writeInt(this.ids.size());
+				output.writeInt(this.entryPoint);
+				output.writeInt(this.maxLevel);
+				output.writeInt(termIds.size());
+				for (final int termId : termIds) {
+					output.writeInt(termId);
+					output.writeUTF(termDictionary.termOf(termId));
+				}
+				for (var node = 0; node < this.ids.size(); node++) {
+					output.writeLong(this.ids.getLong(node));
+					output.writeLong(this.contentHashes.getLong(node));
+					output.writeBoolean(this.deleted.get(node));
+					final SparseVector vector = this.vectors.get(node);
+					output.writeInt(vector.size());
+					for (var i = 0; i < vector.size(); i++) {
+						output.writeInt(vector.termIdAt(i));
+						output.writeFloat(vector.weightAt(i));
+					}
+					final IntArrayList[] levels = this.links.get(node);
+					output.writeInt(levels.length);
+					for (final IntArrayList neighbors : levels) {
+						output.writeInt(neighbors.size());
+						for (var i = 0; i < neighbors.size(); i++) {
+							output.writeInt(neighbors.getInt(i));
+						}
+					}
+				}
+			} catch (final IOException | RuntimeException e) {
+				Files.deleteIfExists(temporary);
+				throw e;
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+}
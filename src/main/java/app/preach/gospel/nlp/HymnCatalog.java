@@ -0,0 +1,241 @@
+package app.preach.gospel.nlp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import app.preach.gospel.dto.RankedPage;
+import app.preach.gospel.mapper.HymnMapper;
+import app.preach.gospel.model.Hymn;
+import app.preach.gospel.pojo.HymnDto;
+import app.preach.gospel.repository.HymnRepository;
+import app.preach.gospel.utils.CoStringUtils;
+import app.preach.gospel.utils.LineNumber;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * 賛美歌カタログ
+ * <p>
+ * 有効な賛美歌のDTOをコーパスバージョン毎に一つだけ保持し、検索結果はIDとラインナンバーの配列としてキャッシュしてここから組み立てる。
+ * 歌詞の文字列は検索キーワードの数だけ複製されない。バージョンが変わった後も読み込みが終わるまでは前のスナップショットを返す。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class HymnCatalog {
+
+	/**
+	 * カタログのスナップショット
+	 *
+	 * @param version      コーパスバージョン
+	 * @param hymns        賛美歌リスト（ID昇順、ラインナンバーはSNOWY）
+	 * @param byId         賛美歌ID → 賛美歌
+	 * @param classicalIds クラシックの賛美歌ID
+	 */
+	public record Snapshot(String version, List<HymnDto> hymns, Long2ObjectOpenHashMap<HymnDto> byId,
+			LongOpenHashSet classicalIds) {
+
+		/**
+		 * 順位の配列から賛美歌リストを組み立てる（削除済みの賛美歌は除く）
+		 *
+		 * @param page 検索結果の順位
+		 * @return List<HymnDto>
+		 */
+		public @NotNull List<HymnDto> hydrate(final @NotNull RankedPage page) {
+			final var lineNumbers = LineNumber.values();
+			final var result = new ArrayList<HymnDto>(page.ids().length);
+			for (var i = 0; i < page.ids().length; i++) {
+				final HymnDto hymnDto = this.byId.get(page.ids()[i]);
+				if (hymnDto == null) {
+					continue;
+				}
+				final LineNumber lineNumber = lineNumbers[page.lineNumbers()[i]];
+				result.add(lineNumber == hymnDto.lineNumber() ? hymnDto
+						: new HymnDto(hymnDto.id(), hymnDto.nameJp(), hymnDto.nameKr(), hymnDto.lyric(),
+								hymnDto.link(), hymnDto.score(), hymnDto.updatedUser(), hymnDto.updatedTime(),
+								lineNumber));
+			}
+			return result;
+		}
+
+		/**
+		 * クラシックではない賛美歌リストを取得する（ID昇順）
+		 *
+		 * @return 可変リスト
+		 */
+		public @NotNull List<HymnDto> nonClassical() {
+			final var result = new ArrayList<HymnDto>(this.hymns.size());
+			this.hymns.forEach(h -> {
+				if (!this.classicalIds.contains(h.id().longValue())) {
+					result.add(h);
+				}
+			});
+			return result;
+		}
+
+		/**
+		 * ID昇順の一覧から1ページ分を切り出す
+		 *
+		 * @param offset   開始位置
+		 * @param margrave 終了位置
+		 * @return RankedPage
+		 */
+		public @NotNull RankedPage slice(final int offset, final int margrave) {
+			final int from = Math.min(Math.max(offset, 0), this.hymns.size());
+			final int to = Math.max(from, Math.min(margrave, this.hymns.size()));
+			final var ids = new long[to - from];
+			final var lineNumbers = new byte[ids.length];
+			for (var i = 0; i < ids.length; i++) {
+				ids[i] = this.hymns.get(from + i).id();
+				lineNumbers[i] = (byte) LineNumber.SNOWY.ordinal();
+			}
+			return new RankedPage(ids, lineNumbers);
+		}
+
+	}
+
+	/**
+	 * ログ
+	 */
+	private static final Logger log = LogManager.getLogger(HymnCatalog.class);
+
+	/**
+	 * コーパスバージョン
+	 */
+	private final CorpusVersion corpusVersion;
+
+	/**
+	 * バックグラウンド処理用のエグゼキューター
+	 */
+	private final Executor executor;
+
+	/**
+	 * Entity2DTO Mapper
+	 */
+	private final HymnMapper hymnMapper;
+
+	/**
+	 * 賛美歌リポジトリ
+	 */
+	private final HymnRepository hymnRepository;
+
+	/**
+	 * 再読み込みが予約済みかどうか
+	 */
+	private final AtomicBoolean reloadScheduled = new AtomicBoolean();
+
+	/**
+	 * 現在のスナップショット
+	 */
+	private volatile Snapshot snapshot;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param corpusVersion  コーパスバージョン
+	 * @param executor       バックグラウンド処理用のエグゼキューター
+	 * @param hymnMapper     Entity2DTO Mapper
+	 * @param hymnRepository 賛美歌リポジトリ
+	 */
+	public HymnCatalog(final CorpusVersion corpusVersion, @Qualifier("nlpExecutor") final Executor executor,
+			final HymnMapper hymnMapper, final HymnRepository hymnRepository) {
+		this.corpusVersion = corpusVersion;
+		this.executor = executor;
+		this.hymnMapper = hymnMapper;
+		this.hymnRepository = hymnRepository;
+	}
+
+	/**
+	 * 現在のスナップショットを取得する（バージョンが変わった場合は前のスナップショットを返し、バックグラウンドで読み込み直す）
+	 *
+	 * @return Snapshot
+	 * @throws DataAccessException データベースエラー（初回の読み込みのみ）
+	 */
+	public @NotNull Snapshot current() throws DataAccessException {
+		final String version = this.corpusVersion.current();
+		final Snapshot current = this.snapshot;
+		if (current != null) {
+			if (!current.version().equals(version)) {
+				this.scheduleReload();
+			}
+			return current;
+		}
+		synchronized (this) {
+			final Snapshot latest = this.snapshot;
+			if (latest != null) {
+				return latest;
+			}
+			final Snapshot loaded = this.load(version);
+			this.snapshot = loaded;
+			return loaded;
+		}
+	}
+
+	/**
+	 * データベースから読み込む
+	 *
+	 * @param version コーパスバージョン
+	 * @return Snapshot
+	 */
+	private @NotNull Snapshot load(final String version) {
+		final List<Hymn> records = this.hymnRepository.findByVisibleFlgTrueOrderByIdAsc();
+		final var hymns = new ArrayList<HymnDto>(records.size());
+		final var byId = new Long2ObjectOpenHashMap<HymnDto>(records.size());
+		final var classicalIds = new LongOpenHashSet();
+		for (final Hymn hymn : records) {
+			final HymnDto hymnDto = this.hymnMapper.toDto2(hymn, LineNumber.SNOWY);
+			hymns.add(hymnDto);
+			byId.put(hymn.id().longValue(), hymnDto);
+			if (CoStringUtils.isEqual(Boolean.TRUE.toString(), hymn.classical())) {
+				classicalIds.add(hymn.id().longValue());
+			}
+		}
+		return new Snapshot(version, List.copyOf(hymns), byId, classicalIds);
+	}
+
+	/**
+	 * 現在のコーパスバージョンで読み込み直す（別のスレッドが先に新しいバージョンを読み込んだ場合は何もしない）
+	 */
+	private void reload() {
+		final String version = this.corpusVersion.current();
+		synchronized (this) {
+			final Snapshot latest = this.snapshot;
+			if (latest != null && latest.version().equals(version)) {
+				return;
+			}
+			this.snapshot = this.load(version);
+		}
+	}
+
+	/**
+	 * スナップショットの再読み込みをバックグラウンドで予約する（予約済みの場合は何もしない）
+	 */
+	private void scheduleReload() {
+		if (!this.reloadScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.executor.execute(() -> {
+				this.reloadScheduled.set(false);
+				try {
+					this.reload();
+				} catch (final RuntimeException e) {
+					log.warn("賛美歌カタログの再読み込みに失敗しました：" + e.getMessage());
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			this.reloadScheduled.set(false);
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package app.preach.gospel.nlp;
+
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+/**
+ * コーパスバージョン付きIDFモデル
+ * <p>
+ * 構築後は変更しない。インデックス更新時は新しいモデルを裏で作り、参照ごと差し替える。文書頻度はインデックス側で文書毎に増減したものを受け取る。
+ * 正規化済みの文書ベクトルとノルム、近傍リストはヒープ外の{@link VectorStore}に置く。検索時の文書側の重みはポスティングの出現頻度とIDFから求め、ノルムで割る。
+ *
+ * @param version   構築元のコーパスバージョン
+ * @param totalDocs 総文書数
+ * @param idf       形態素ID → IDF
+ * @param vectors   文書ベクトルストア
+ * @author ArkamaHozota
+ */
+public record IdfModel(long version, int totalDocs, Int2DoubleOpenHashMap idf, VectorStore vectors) {
+
+	/**
+	 * BM25のIDFを計算する（文書頻度が総文書数の半分を超えても負にならない形）
+	 *
+	 * @param totalDocs 総文書数
+	 * @param docFreq   文書頻度
+	 * @return IDF
+	 */
+	public static double bm25Idf(final int totalDocs, final int docFreq) {
+		return Math.log(1.0 + (totalDocs - docFreq + 0.5) / (docFreq + 0.5));
+	}
+
+	/**
+	 * 削除されていない文書から構築する
+	 *
+	 * @param version    コーパスバージョン
+	 * @param totalDocs  総文書数
+	 * @param docFreqs   形態素ID → 文書頻度
+	 * @param segments   セグメントリスト
+	 * @param neighbors  文書毎に保持する近傍数
+	 * @param previous   直前のモデル（nullの場合は近傍リストを全て計算する）
+	 * @param changedIds 直前のモデルの構築後に追加、変更、削除された賛美歌ID
+	 * @return IdfModel
+	 */
+	public static @NotNull IdfModel build(final long version, final int totalDocs, final @NotNull Int2IntMap docFreqs,
+			final @NotNull List<LyricSegment> segments, final int neighbors, final IdfModel previous,
+			final @NotNull LongSet changedIds) {
+		final var idfs = new Int2DoubleOpenHashMap(docFreqs.size());
+		docFreqs.int2IntEntrySet().forEach(en -> idfs.put(en.getIntKey(), idf(totalDocs, en.getIntValue())));
+		return new IdfModel(version, totalDocs, idfs, VectorStore.build(segments, idfs, neighbors,
+				previous == null ? null : previous.vectors(), changedIds));
+	}
+
+	/**
+	 * IDFを計算する
+	 *
+	 * @param totalDocs 総文書数
+	 * @param docFreq   文書頻度
+	 * @return IDF
+	 */
+	public static double idf(final int totalDocs, final int docFreq) {
+		return Math.log((totalDocs + 1.0) / (docFreq + 1.0)) + 1.0;
+	}
+
+	/**
+	 * 賛美歌のTF-IDFベクトルのノルムを取得する
+	 *
+	 * @param id 賛美歌ID
+	 * @return モデル構築後に追加された賛美歌の場合は0
+	 */
+	public double normOf(final long id) {
+		final int ordinal = this.vectors.ordinalOf(id);
+		return ordinal < 0 ? 0.00 : this.vectors.normAt(ordinal);
+	}
+
+}
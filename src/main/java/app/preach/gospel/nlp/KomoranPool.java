@@ -0,0 +1,220 @@
+package app.preach.gospel.nlp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import kr.co.shineware.nlp.komoran.constant.DEFAULT_MODEL;
+import kr.co.shineware.nlp.komoran.core.Komoran;
+
+/**
+ * KOMORANプール
+ * <p>
+ * 形態素解析器をスレッド間で共有せず、貸し出し中は一つのスレッドだけが使う。インスタンスは必要になった時に上限（既定は2）まで作成し、
+ * 上限に達した後は返却を待つ。待ち時間と稼働率を集計し、定期的にログへ出力する。
+ * KOMORANは読み込んだ辞書モデルを解析器間で共有できないため、一枠毎に辞書モデル一式をヒープに持つ（FULLで数百MB規模、LIGHTはその数分の一）。
+ * 上限はコア数ではなくヒープの余裕から決め、稼働率が高く待ちが多い場合のみ増やす。
+ * 辞書モデルはクラス初期化時に読み込まず、最初の貸し出し時（通常は起動後のバックグラウンドのウォームアップ）に読み込む。
+ * メモリの少ないインスタンスでは{@code nlp.komoran.model}にLIGHTを指定できる。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class KomoranPool {
+
+	/**
+	 * プール統計
+	 *
+	 * @param size          上限
+	 * @param created       作成済み件数
+	 * @param inUse         貸し出し中件数
+	 * @param borrows       貸し出し回数
+	 * @param waits         待ちが発生した回数
+	 * @param avgWaitMicros 平均待ち時間（マイクロ秒）
+	 * @param maxWaitMicros 最大待ち時間（マイクロ秒）
+	 * @param utilization   稼働率（貸し出し時間 ÷ (上限 × 経過時間)）
+	 */
+	public record Stats(int size, int created, int inUse, long borrows, long waits, long avgWaitMicros,
+			long maxWaitMicros, double utilization) {
+	}
+
+	/**
+	 * ログ
+	 */
+	private static final Logger log = LogManager.getLogger(KomoranPool.class);
+
+	/**
+	 * 貸し出し回数
+	 */
+	private final LongAdder borrows = new LongAdder();
+
+	/**
+	 * 貸し出し時間の合計（ナノ秒）
+	 */
+	private final LongAdder busyNanos = new LongAdder();
+
+	/**
+	 * 作成済み件数
+	 */
+	private final AtomicInteger created = new AtomicInteger();
+
+	/**
+	 * 返却済みの解析器
+	 */
+	private final BlockingQueue<Komoran> idle;
+
+	/**
+	 * 貸し出し中件数
+	 */
+	private final AtomicInteger inUse = new AtomicInteger();
+
+	/**
+	 * 最大待ち時間（ナノ秒）
+	 */
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	/**
+	 * 辞書モデル
+	 */
+	private final DEFAULT_MODEL model;
+
+	/**
+	 * 上限
+	 */
+	private final int size;
+
+	/**
+	 * 集計開始時刻（ナノ秒）
+	 */
+	private final long startedAt = System.nanoTime();
+
+	/**
+	 * 待ち時間の合計（ナノ秒）
+	 */
+	private final LongAdder waitNanos = new LongAdder();
+
+	/**
+	 * 待ちが発生した回数
+	 */
+	private final LongAdder waits = new LongAdder();
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param model    辞書モデル（FULLまたはLIGHT）
+	 * @param poolSize 上限（一枠毎に辞書モデル一式を持つ、1未満の場合は1）
+	 */
+	public KomoranPool(@Value("${nlp.komoran.model:FULL}") final DEFAULT_MODEL model,
+			@Value("${nlp.komoran.pool-size:2}") final int poolSize) {
+		this.model = model;
+		this.size = Math.max(poolSize, 1);
+		this.idle = new ArrayBlockingQueue<>(this.size);
+	}
+
+	/**
+	 * 解析器を借りる（上限に達している場合は返却を待つ）
+	 *
+	 * @return Komoran
+	 * @throws InterruptedException 待機中に割り込まれた場合
+	 */
+	private @NotNull Komoran acquire() throws InterruptedException {
+		final Komoran pooled = this.idle.poll();
+		if (pooled != null) {
+			return pooled;
+		}
+		while (true) {
+			final int current = this.created.get();
+			if (current >= this.size) {
+				break;
+			}
+			if (this.created.compareAndSet(current, current + 1)) {
+				try {
+					final long start = System.nanoTime();
+					final var komoran = new Komoran(this.model);
+					log.info("KOMORANの" + this.model + "モデルを読み込みました。所要時間："
+							+ (System.nanoTime() - start) / 1_000_000L + "ms");
+					return komoran;
+				} catch (final RuntimeException e) {
+					this.created.decrementAndGet();
+					throw e;
+				}
+			}
+		}
+		this.waits.increment();
+		return this.idle.take();
+	}
+
+	/**
+	 * 解析器を借りて処理を実行する
+	 *
+	 * @param <T>    戻り値の型
+	 * @param action 処理
+	 * @return 処理結果
+	 */
+	public <T> T analyze(final @NotNull Function<Komoran, T> action) {
+		final long requested = System.nanoTime();
+		final Komoran komoran;
+		try {
+			komoran = this.acquire();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		final long acquired = System.nanoTime();
+		final long waited = acquired - requested;
+		this.borrows.increment();
+		this.waitNanos.add(waited);
+		this.maxWaitNanos.accumulateAndGet(waited, Math::max);
+		this.inUse.incrementAndGet();
+		try {
+			return action.apply(komoran);
+		} finally {
+			this.inUse.decrementAndGet();
+			this.busyNanos.add(System.nanoTime() - acquired);
+			this.idle.offer(komoran);
+		}
+	}
+
+	/**
+	 * 統計を定期的にログへ出力する
+	 */
+	@Scheduled(fixedDelayString = "${nlp.komoran.stats-interval:PT5M}")
+	public void logStats() {
+		if (this.borrows.sum() > 0) {
+			log.info("KOMORAN pool stats: {}", this.stats());
+		}
+	}
+
+	/**
+	 * 辞書モデルを取得する
+	 *
+	 * @return DEFAULT_MODEL
+	 */
+	public @NotNull DEFAULT_MODEL model() {
+		return this.model;
+	}
+
+	/**
+	 * 統計を取得する
+	 *
+	 * @return Stats
+	 */
+	public @NotNull Stats stats() {
+		final long borrowed = this.borrows.sum();
+		final long elapsed = Math.max(System.nanoTime() - this.startedAt, 1L);
+		return new Stats(this.size, this.created.get(), this.inUse.get(), borrowed, this.waits.sum(),
+				borrowed == 0 ? 0L : this.waitNanos.sum() / borrowed / 1_000L, this.maxWaitNanos.get() / 1_000L,
+				(double) this.busyNanos.sum() / ((double) this.size * elapsed));
+	}
+
+}
@@ -0,0 +1,69 @@
+package app.preach.gospel.nlp;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * KOMORANトークナイザー
+ * <p>
+ * 形態素解析の結果の形態素を索引語とする。解析器は{@link KomoranPool}から借りる。
+ * 助詞・語尾・記号などは{@code nlp.komoran.pos-tags}に含まれない品詞として解析時に除外し、語彙とベクトルを小さく保つ（空の場合は全て残す）。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class KomoranTokenizer implements LyricTokenizer {
+
+	/**
+	 * トークナイザー名
+	 */
+	public static final String NAME = "KOMORAN";
+
+	/**
+	 * KOMORANプール
+	 */
+	private final KomoranPool komoranPool;
+
+	/**
+	 * 索引語として残す品詞タグ
+	 */
+	private final Set<String> posTags;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param komoranPool KOMORANプール
+	 * @param posTags     索引語として残す品詞タグ
+	 */
+	public KomoranTokenizer(final KomoranPool komoranPool,
+			@Value("${nlp.komoran.pos-tags:NNG,NNP,NNB,NP,NR,VV,VA,XR}") final String[] posTags) {
+		this.komoranPool = komoranPool;
+		this.posTags = Arrays.stream(posTags).map(String::strip).filter(t -> !t.isEmpty())
+				.collect(Collectors.toUnmodifiableSet());
+	}
+
+	@Override
+	public @NotNull String name() {
+		return NAME;
+	}
+
+	@Override
+	public @NotNull String signature() {
+		return NAME + ":" + this.komoranPool.model() + ":" + String.join(",", new TreeSet<>(this.posTags));
+	}
+
+	@Override
+	public @NotNull List<String> tokenize(final @NotNull String koreanText) {
+		return this.komoranPool.analyze(komoran -> komoran.analyze(koreanText).getTokenList().stream()
+				.filter(t -> this.posTags.isEmpty() || this.posTags.contains(t.getPos())).map(t -> t.getMorph())
+				.toList());
+	}
+
+}
@@ -0,0 +1,176 @@
+package app.preach.gospel.nlp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+
+import app.preach.gospel.dto.TokKey;
+import app.preach.gospel.utils.CoStringUtils;
+
+/**
+ * 歌詞解析器
+ * <p>
+ * ハングル抽出、形態素解析、形態素ID化、出現頻度集計を一回の走査で行う。文書は内容が変わった時だけ解析し、結果は{@link LyricInvertedIndex}が保持する。
+ * 索引語への分割は{@link TokenizerRegistry}で選択されたトークナイザーが行う。クエリの索引語は抽出後のテキストとトークナイザー名をキーにキャッシュする。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class LyricAnalyzer {
+
+	/**
+	 * Korean Language
+	 */
+	private static final String KR = "Korean";
+
+	/**
+	 * 歌詞の内容ハッシュを計算する（抽出したハングルのSHA-256の先頭8バイト）
+	 *
+	 * @param text 歌詞
+	 * @return ハッシュ値
+	 */
+	public static long contentHash(final String text) {
+		final String koreanText = CoStringUtils.isEmpty(text) ? CoStringUtils.EMPTY_STRING : extractHangul(text);
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-256")
+					.digest(koreanText.getBytes(StandardCharsets.UTF_8));
+			var hash = 0L;
+			for (var i = 0; i < Long.BYTES; i++) {
+				hash = hash << 8 | digest[i] & 0xFFL;
+			}
+			return hash;
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * ハングル以外の文字を取り除く
+	 * <p>
+	 * 全てハングルの場合は元の文字列をそのまま返す。
+	 *
+	 * @param text テキスト
+	 * @return ハングルのみのテキスト
+	 */
+	public static @NotNull String extractHangul(final @NotNull String text) {
+		final int length = text.length();
+		var first = 0;
+		while (first < length && isHangul(text.charAt(first))) {
+			first++;
+		}
+		if (first == length) {
+			return text;
+		}
+		final var builder = new StringBuilder(length);
+		builder.append(text, 0, first);
+		for (var i = first + 1; i < length; i++) {
+			final char ch = text.charAt(i);
+			if (isHangul(ch)) {
+				builder.append(ch);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * ハングルかどうかを判断する（\p{IsHangul}と同じ判定）
+	 *
+	 * @param ch 文字
+	 * @return true/false
+	 */
+	public static boolean isHangul(final char ch) {
+		// 大半を占める音節文字は範囲比較のみで判定する
+		if (ch >= '가' && ch <= '힣') {
+			return true;
+		}
+		if (ch < 'ᄀ') {
+			return false;
+		}
+		return Character.UnicodeScript.of(ch) == Character.UnicodeScript.HANGUL;
+	}
+
+	/**
+	 * 形態素キャッシュ
+	 */
+	private final Cache<TokKey, List<String>> tokenCache;
+
+	/**
+	 * 形態素辞書
+	 */
+	private final TermDictionary termDictionary;
+
+	/**
+	 * トークナイザー
+	 */
+	private final LyricTokenizer tokenizer;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param termDictionary    形態素辞書
+	 * @param tokenCache        形態素キャッシュ
+	 * @param tokenizerRegistry トークナイザーレジストリ
+	 */
+	public LyricAnalyzer(final TermDictionary termDictionary,
+			@Qualifier("tokenCache") final Cache<TokKey, List<String>> tokenCache,
+			final TokenizerRegistry tokenizerRegistry) {
+		this.termDictionary = termDictionary;
+		this.tokenCache = tokenCache;
+		this.tokenizer = tokenizerRegistry.active();
+	}
+
+	/**
+	 * 文書を解析する（未登録の形態素は採番する）
+	 *
+	 * @param text 歌詞
+	 * @return AnalyzedDocument
+	 */
+	public @NotNull AnalyzedDocument analyze(final String text) {
+		if (CoStringUtils.isEmpty(text)) {
+			return AnalyzedDocument.EMPTY;
+		}
+		final String koreanText = extractHangul(text);
+		if (koreanText.isEmpty()) {
+			return AnalyzedDocument.EMPTY;
+		}
+		return AnalyzedDocument.of(this.termDictionary.encode(this.tokenizer.tokenize(koreanText)));
+	}
+
+	/**
+	 * 賛美歌の歌詞を解析し、索引する文書を作成する
+	 *
+	 * @param id   賛美歌ID
+	 * @param text 歌詞
+	 * @return LyricSegment.Entry
+	 */
+	public LyricSegment.@NotNull Entry analyze(final long id, final String text) {
+		return new LyricSegment.Entry(id, contentHash(text), this.analyze(text));
+	}
+
+	/**
+	 * クエリを解析する（未登録の形態素は除外し、採番しない）
+	 *
+	 * @param text クエリテキスト
+	 * @return AnalyzedDocument
+	 */
+	public @NotNull AnalyzedDocument analyzeQuery(final String text) {
+		if (CoStringUtils.isEmpty(text)) {
+			return AnalyzedDocument.EMPTY;
+		}
+		final String koreanText = extractHangul(text);
+		if (koreanText.isEmpty()) {
+			return AnalyzedDocument.EMPTY;
+		}
+		final var key = new TokKey(KR, this.tokenizer.name(), koreanText);
+		final List<String> tokens = this.tokenCache.get(key, k -> this.tokenizer.tokenize(k.text()));
+		return AnalyzedDocument.of(this.termDictionary.lookup(tokens));
+	}
+
+}
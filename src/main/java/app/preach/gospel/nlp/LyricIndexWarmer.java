@@ -0,0 +1,435 @@
+package app.preach.gospel.nlp;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import app.preach.gospel.model.Hymn;
+import app.preach.gospel.repository.HymnRepository;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * 歌詞転置インデックスのウォームアップ
+ * <p>
+ * 有効な賛美歌を全件取得し、保存済みのセグメントと内容ハッシュを突き合わせる。新規または歌詞が変わった賛美歌のみをコア数分に分割して並列に解析し、
+ * IDFモデルと文書ノルムまで構築する。再起動後は歌詞が変わっていなければ形態素解析を行わない。
+ * 起動時はコンテキストの起動後にバックグラウンドで実行し、完了するまで検索は名称一致のみで応答する。
+ * 完了するまでレディネスはREFUSING_TRAFFICとし、完了時にACCEPTING_TRAFFICへ切り替える。
+ * 失敗した場合はリクエストを待たず、間隔を倍にしながら定期的に再試行する。
+ * 完了前の書き込みによるインデックス更新は保留し、完了後に順番通り適用する。
+ * 完了後に他ノードや直接のDB更新を検知した場合は、同じ突き合わせをバックグラウンドで再度行う。再突き合わせ中の書き込みによる
+ * インデックス更新も保留し、再突き合わせの後に順番通り適用する。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class LyricIndexWarmer {
+
+	/**
+	 * ログ
+	 */
+	private static final Logger log = LogManager.getLogger(LyricIndexWarmer.class);
+
+	/**
+	 * 一スライスあたりの最小件数
+	 */
+	private static final int MIN_SLICE_SIZE = 32;
+
+	/**
+	 * コーパスバージョン
+	 */
+	private final CorpusVersion corpusVersion;
+
+	/**
+	 * イベント発行
+	 */
+	private final ApplicationEventPublisher eventPublisher;
+
+	/**
+	 * バックグラウンド処理用エグゼキューター
+	 */
+	private final Executor executor;
+
+	/**
+	 * 連続して失敗した回数
+	 */
+	private volatile int failures;
+
+	/**
+	 * 賛美歌リポジトリ
+	 */
+	private final HymnRepository hymnRepository;
+
+	/**
+	 * 歌詞解析器
+	 */
+	private final LyricAnalyzer lyricAnalyzer;
+
+	/**
+	 * 歌詞転置インデックス
+	 */
+	private final LyricInvertedIndex lyricInvertedIndex;
+
+	/**
+	 * 次に再試行する時刻（ナノ秒）
+	 */
+	private volatile long nextRetryAt;
+
+	/**
+	 * 完了後（再突き合わせ中の場合は再突き合わせ後）に適用するインデックス更新
+	 */
+	private final List<Runnable> pending = new ArrayList<>();
+
+	/**
+	 * ウォームアップ完了フラグ
+	 */
+	private volatile boolean ready;
+
+	/**
+	 * 再突き合わせ中フラグ（pendingで保護する）
+	 */
+	private boolean resyncing;
+
+	/**
+	 * 再突き合わせ予約済みフラグ
+	 */
+	private final AtomicBoolean resyncScheduled = new AtomicBoolean();
+
+	/**
+	 * 再試行間隔の初期値
+	 */
+	private final Duration retryInterval;
+
+	/**
+	 * 再試行間隔の上限
+	 */
+	private final Duration retryMax;
+
+	/**
+	 * バックグラウンド実行中フラグ
+	 */
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param corpusVersion      コーパスバージョン
+	 * @param eventPublisher     イベント発行
+	 * @param executor           バックグラウンド処理用エグゼキューター
+	 * @param hymnRepository     賛美歌リポジトリ
+	 * @param lyricAnalyzer      歌詞解析器
+	 * @param lyricInvertedIndex 歌詞転置インデックス
+	 * @param retryInterval      再試行間隔の初期値
+	 * @param retryMax           再試行間隔の上限
+	 */
+	public LyricIndexWarmer(final CorpusVersion corpusVersion, final ApplicationEventPublisher eventPublisher,
+			@Qualifier("nlpExecutor") final Executor executor, final HymnRepository hymnRepository,
+			final LyricAnalyzer lyricAnalyzer, final LyricInvertedIndex lyricInvertedIndex,
+			@Value("${nlp.index.warm-up-retry:PT10S}") final Duration retryInterval,
+			@Value("${nlp.index.warm-up-retry-max:PT5M}") final Duration retryMax) {
+		this.corpusVersion = corpusVersion;
+		this.eventPublisher = eventPublisher;
+		this.executor = executor;
+		this.hymnRepository = hymnRepository;
+		this.lyricAnalyzer = lyricAnalyzer;
+		this.lyricInvertedIndex = lyricInvertedIndex;
+		this.retryInterval = retryInterval;
+		this.retryMax = retryMax;
+	}
+
+	/**
+	 * ウォームアップ完了後にインデックス更新を適用する（完了済みかつ再突き合わせ中でない場合は即時に適用する）
+	 * <p>
+	 * 再突き合わせが読み込んだ古い歌詞で上書きしないよう、再突き合わせ中の更新は保留して再突き合わせの後に適用する。
+	 *
+	 * @param action インデックス更新
+	 */
+	public void afterWarmUp(final @NotNull Runnable action) {
+		synchronized (this.pending) {
+			if (!this.ready || this.resyncing) {
+				this.pending.add(action);
+				return;
+			}
+		}
+		action.run();
+	}
+
+	/**
+	 * 賛美歌を解析する
+	 *
+	 * @param hymns 賛美歌リスト
+	 * @return 索引する文書リスト
+	 */
+	private @NotNull List<LyricSegment.Entry> analyze(final @NotNull List<Hymn> hymns) {
+		final var entries = new ArrayList<LyricSegment.Entry>(hymns.size());
+		hymns.forEach(h -> entries.add(this.lyricAnalyzer.analyze(h.id(), h.lyric())));
+		return entries;
+	}
+
+	/**
+	 * スライス毎に並列で解析する
+	 * <p>
+	 * 呼び出しスレッドも同じエグゼキューター上で動くことがあるため、未着手のスライスは呼び出しスレッドが引き取って解析する。
+	 *
+	 * @param hymns 賛美歌リスト
+	 * @return 索引する文書リスト
+	 */
+	private @NotNull List<LyricSegment.Entry> analyzeInParallel(final @NotNull List<Hymn> hymns) {
+		final int parallelism = Math.max(1,
+				Math.min(Runtime.getRuntime().availableProcessors(), hymns.size() / MIN_SLICE_SIZE));
+		final int sliceSize = Math.max(1, (hymns.size() + parallelism - 1) / parallelism);
+		final var slices = new ArrayList<CompletableFuture<List<LyricSegment.Entry>>>(parallelism);
+		final var tasks = new ArrayList<Runnable>(parallelism);
+		for (var from = 0; from < hymns.size(); from += sliceSize) {
+			final List<Hymn> slice = hymns.subList(from, Math.min(from + sliceSize, hymns.size()));
+			final var future = new CompletableFuture<List<LyricSegment.Entry>>();
+			final var claimed = new AtomicBoolean();
+			final Runnable task = () -> {
+				if (!claimed.compareAndSet(false, true)) {
+					return;
+				}
+				try {
+					future.complete(this.analyze(slice));
+				} catch (final RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			};
+			slices.add(future);
+			tasks.add(task);
+			try {
+				this.executor.execute(task);
+			} catch (final RejectedExecutionException e) {
+				// 下の引き取りで解析する
+			}
+		}
+		tasks.forEach(Runnable::run);
+		final var entries = new ArrayList<LyricSegment.Entry>(hymns.size());
+		try {
+			slices.forEach(slice -> entries.addAll(slice.join()));
+		} catch (final CompletionException e) {
+			if (e.getCause() instanceof final RuntimeException cause) {
+				throw cause;
+			}
+			throw e;
+		}
+		return entries;
+	}
+
+	/**
+	 * 再突き合わせ中に保留したインデックス更新を順番通り適用し、再突き合わせ中フラグを下ろす
+	 * <p>
+	 * 適用中に届いた更新も保留されるため、保留がなくなるまで繰り返す。
+	 */
+	private void drainPending() {
+		while (true) {
+			final List<Runnable> batch;
+			synchronized (this.pending) {
+				if (this.pending.isEmpty()) {
+					this.resyncing = false;
+					return;
+				}
+				batch = new ArrayList<>(this.pending);
+				this.pending.clear();
+			}
+			batch.forEach(action -> {
+				try {
+					action.run();
+				} catch (final RuntimeException e) {
+					log.warn("保留したインデックス更新に失敗しました：" + e.getMessage());
+				}
+			});
+		}
+	}
+
+	/**
+	 * ウォームアップが完了したかを判断する
+	 *
+	 * @return true/false
+	 */
+	public boolean isReady() {
+		return this.ready;
+	}
+
+	/**
+	 * ウォームアップ完了前にレディネスがACCEPTING_TRAFFICとなった場合、REFUSING_TRAFFICへ戻す
+	 * <p>
+	 * Spring BootはApplicationRunnerの終了後にACCEPTING_TRAFFICとするため、バックグラウンドのウォームアップを待たない。
+	 *
+	 * @param event レディネス変更イベント
+	 */
+	@EventListener
+	public void onReadinessChange(final @NotNull AvailabilityChangeEvent<ReadinessState> event) {
+		synchronized (this.pending) {
+			if (event.getState() == ReadinessState.ACCEPTING_TRAFFIC && !this.ready) {
+				AvailabilityChangeEvent.publish(this.eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+			}
+		}
+	}
+
+	/**
+	 * 有効な賛美歌とインデックスを突き合わせ、新規または歌詞が変わった賛美歌のみを解析して反映する
+	 *
+	 * @param hymns 有効な賛美歌リスト
+	 * @return 解析件数
+	 * @throws IOException セグメントを書き出せない場合
+	 */
+	private int reconcile(final @NotNull List<Hymn> hymns) throws IOException {
+		final var liveIds = new LongOpenHashSet(hymns.size());
+		final var changed = new ArrayList<Hymn>();
+		hymns.forEach(h -> {
+			liveIds.add(h.id().longValue());
+			if (!this.lyricInvertedIndex.isCurrent(h.id(), LyricAnalyzer.contentHash(h.lyric()))) {
+				changed.add(h);
+			}
+		});
+		final List<LyricSegment.Entry> entries = this.analyzeInParallel(changed);
+		this.lyricInvertedIndex.reconcile(liveIds, entries);
+		return entries.size();
+	}
+
+	/**
+	 * 外部の変更を検知した場合の処理を登録する
+	 */
+	@PostConstruct
+	public void register() {
+		this.corpusVersion.onExternalChange(this::resyncAsync);
+	}
+
+	/**
+	 * ウォームアップ完了後、データベースとの再突き合わせをバックグラウンドで予約する（完了前や予約済みの場合は何もしない）
+	 */
+	public void resyncAsync() {
+		if (!this.ready || !this.resyncScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.executor.execute(() -> {
+				// 再突き合わせ同士は一つずつ実行する
+				synchronized (this) {
+					this.resyncScheduled.set(false);
+					synchronized (this.pending) {
+						this.resyncing = true;
+					}
+					try {
+						final long start = System.nanoTime();
+						final List<Hymn> hymns = this.hymnRepository.findByVisibleFlgTrueOrderByIdAsc();
+						final int analyzed = this.reconcile(hymns);
+						log.info("歌詞転置インデックスを再突き合わせしました。件数：" + hymns.size() + "、解析件数：" + analyzed
+								+ "、所要時間：" + (System.nanoTime() - start) / 1_000_000L + "ms");
+					} catch (final IOException | RuntimeException e) {
+						log.warn("歌詞転置インデックスの再突き合わせに失敗しました：" + e.getMessage());
+					} finally {
+						this.drainPending();
+					}
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			this.resyncScheduled.set(false);
+		}
+	}
+
+	/**
+	 * 未完了の場合、前回の失敗から再試行間隔が過ぎていればウォームアップを再試行する
+	 * <p>
+	 * レディネスがREFUSING_TRAFFICの間は検索が届かないため、リクエストに依らず定期的に確認する。
+	 */
+	@Scheduled(fixedDelayString = "${nlp.index.warm-up-retry:PT10S}")
+	public void retryWarmUp() {
+		if (this.ready || this.failures == 0 || System.nanoTime() - this.nextRetryAt < 0) {
+			return;
+		}
+		log.info("歌詞転置インデックスの構築を再試行します");
+		this.warmUpAsync();
+	}
+
+	/**
+	 * 未完了の場合、次の再試行時刻を連続失敗回数に応じて倍々に延ばす（完了済みの場合は失敗回数を戻す）
+	 * <p>
+	 * バックグラウンド実行中フラグを持つスレッドのみが呼び出す。
+	 */
+	private void scheduleRetry() {
+		if (this.ready) {
+			this.failures = 0;
+			return;
+		}
+		final int failed = this.failures + 1;
+		final long delay = Math.min(this.retryMax.toNanos(),
+				this.retryInterval.toNanos() << Math.min(failed - 1, 20));
+		this.nextRetryAt = System.nanoTime() + delay;
+		this.failures = failed;
+		log.warn("歌詞転置インデックスの構築は未完了です。" + delay / 1_000_000L + "ms後に再試行します（" + failed + "回目の失敗）");
+	}
+
+	/**
+	 * インデックスを構築する（完了済みの場合は何もしない）
+	 * <p>
+	 * データベースエラーまたはセグメントを書き出せない場合は未完了のままとし、定期的な再試行または次回の検索時に再試行する。
+	 */
+	public synchronized void warmUp() {
+		if (this.ready) {
+			return;
+		}
+		try {
+			final long start = System.nanoTime();
+			final List<Hymn> hymns = this.hymnRepository.findByVisibleFlgTrueOrderByIdAsc();
+			this.lyricInvertedIndex.open();
+			final int analyzed = this.reconcile(hymns);
+			this.corpusVersion.totalRecords();
+			synchronized (this.pending) {
+				this.pending.forEach(Runnable::run);
+				this.pending.clear();
+				this.ready = true;
+				AvailabilityChangeEvent.publish(this.eventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+			}
+			log.info("歌詞転置インデックスを構築しました。件数：" + hymns.size() + "、解析件数：" + analyzed + "、所要時間："
+					+ (System.nanoTime() - start) / 1_000_000L + "ms");
+		} catch (final DataAccessException | IOException e) {
+			log.warn("歌詞転置インデックスの構築に失敗しました：" + e.getMessage());
+		}
+	}
+
+	/**
+	 * インデックスの構築をバックグラウンドで開始する（実行中または完了済みの場合は何もしない）
+	 */
+	public void warmUpAsync() {
+		if (this.ready || !this.running.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.executor.execute(() -> {
+				try {
+					this.warmUp();
+				} catch (final RuntimeException e) {
+					log.warn("歌詞転置インデックスの構築に失敗しました：" + e.getMessage());
+				} finally {
+					this.scheduleRetry();
+					this.running.set(false);
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			this.running.set(false);
+			log.warn("歌詞転置インデックスの構築を開始できませんでした：" + e.getMessage());
+		}
+	}
+
+}
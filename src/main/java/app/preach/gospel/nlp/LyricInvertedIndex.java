@@ -0,0 +1,1551 @@
+package app.preach.gospel.nlp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import app.preach.gospel.dto.RankedPage;
+import app.preach.gospel.utils.CoStringUtils;
+import app.preach.gospel.utils.LineNumber;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * 歌詞転置インデックス
+ * <p>
+ * ポスティング、形態素リスト、形態素文字列はメモリマップした{@link LyricSegment}に置き、ヒープには削除済みの文書とIDFのみを持つ。
+ * 検索時はクエリの形態素のポスティングのみを走査する。コーパスの変更は新しいセグメントとして書き出し、
+ * 古いセグメントの同じ賛美歌は削除済みとする。セグメントが増えた場合はバックグラウンドで一つへマージする。
+ * セグメントは再起動後も使い、同じ賛美歌を含む場合は世代の新しい方を有効とする。
+ * 文書頻度と総文書数は追加、変更、削除された文書の分だけ増減する。クエリの重みは常に現在の文書頻度から求める。
+ * ヒープ外の文書ベクトルとノルム、近傍リストはコーパスバージョン付きの{@link IdfModel}として保持し、変更が溜まった場合または定期的に
+ * 裏で作り直して差し替える。差し替えまでの間、モデル構築後に変更された文書のノルムは現在のIDFで都度求める。
+ * 関連する賛美歌の近傍リストは変更された賛美歌の影響を受ける文書のみ計算し直す。
+ * {@code nlp.scoring}がBM25の場合、検索はポスティングとセグメントの文書長のみで行い、文書ベクトルを使わない。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class LyricInvertedIndex {
+
+	/**
+	 * コサイン類似度の上限に加える余裕（文書ベクトルの重みが単精度のため）
+	 */
+	private static final double BOUND_TOLERANCE = 1.0E-6;
+
+	/**
+	 * ログ
+	 */
+	private static final Logger log = LogManager.getLogger(LyricInvertedIndex.class);
+
+	/**
+	 * セグメントを末尾に加えたリストを作成する
+	 *
+	 * @param segments セグメントリスト
+	 * @param segment  加えるセグメント
+	 * @return 変更不可のリスト
+	 */
+	private static @NotNull List<LyricSegment> append(final @NotNull List<LyricSegment> segments,
+			final @NotNull LyricSegment segment) {
+		final var appended = new ArrayList<LyricSegment>(segments.size() + 1);
+		appended.addAll(segments);
+		appended.add(segment);
+		return List.copyOf(appended);
+	}
+
+	/**
+	 * BM25の文書長の正規化の強さ
+	 */
+	private final double b;
+
+	/**
+	 * モデル構築後に追加、変更、削除された賛美歌ID → 変更時のコーパスバージョン（書き込みロック中のみ変更）
+	 */
+	private final Long2LongOpenHashMap changedAt = new Long2LongOpenHashMap();
+
+	/**
+	 * セグメントの保存先
+	 */
+	private final Path directory;
+
+	/**
+	 * 形態素ID → 文書頻度（書き込みロック中のみ変更）
+	 */
+	private final Int2IntOpenHashMap docFreqs = new Int2IntOpenHashMap();
+
+	/**
+	 * バックグラウンド処理用エグゼキューター
+	 */
+	private final Executor executor;
+
+	/**
+	 * 複数クエリのスコアの統合方式
+	 */
+	private final FusionMode fusion;
+
+	/**
+	 * 次に書き出すセグメントの世代
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * HNSWグラフ（コーパスが下限件数に満たない場合、またはBM25の場合はnull）
+	 */
+	private volatile HnswGraph graph;
+
+	/**
+	 * HNSWグラフの同期のロック
+	 */
+	private final Object graphLock = new Object();
+
+	/**
+	 * HNSWグラフの同期予約フラグ
+	 */
+	private final AtomicBoolean graphScheduled = new AtomicBoolean();
+
+	/**
+	 * HNSWグラフの構築時の探索幅
+	 */
+	private final int hnswEfConstruction;
+
+	/**
+	 * HNSWグラフの検索時の探索幅
+	 */
+	private final int hnswEfSearch;
+
+	/**
+	 * HNSWグラフの各層の近傍数
+	 */
+	private final int hnswM;
+
+	/**
+	 * HNSWグラフを構築するコーパスの下限件数（0以下の場合は構築しない）
+	 */
+	private final int hnswMinDocs;
+
+	/**
+	 * BM25の出現頻度の飽和の強さ
+	 */
+	private final double k1;
+
+	/**
+	 * 読み書きロック
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * マージを始めるセグメント数
+	 */
+	private final int maxSegments;
+
+	/**
+	 * マージを一つずつ実行するためのロック
+	 */
+	private final Object mergeLock = new Object();
+
+	/**
+	 * マージの予約済みフラグ
+	 */
+	private final AtomicBoolean mergeScheduled = new AtomicBoolean();
+
+	/**
+	 * 構築済みのIDFモデル
+	 */
+	private final AtomicReference<IdfModel> model = new AtomicReference<>();
+
+	/**
+	 * 文書毎に保持する近傍数
+	 */
+	private final int neighbors;
+
+	/**
+	 * 既存のセグメントを読み込んだかどうか
+	 */
+	private boolean opened;
+
+	/**
+	 * IDFモデル再構築の排他用
+	 */
+	private final Object rebuildLock = new Object();
+
+	/**
+	 * IDFモデル再構築の予約済みフラグ
+	 */
+	private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+
+	/**
+	 * IDFモデルの再構築を始める未反映の変更数
+	 */
+	private final int refreshThreshold;
+
+	/**
+	 * RRFの順位に加える定数
+	 */
+	private final int rrfK;
+
+	/**
+	 * スコアリング方式
+	 */
+	private final ScoringMode scoring;
+
+	/**
+	 * セグメントリスト（世代の昇順、差し替えのみ）
+	 */
+	private volatile List<LyricSegment> segments = List.of();
+
+	/**
+	 * 保存先が一時ディレクトリかどうか
+	 */
+	private final boolean temporary;
+
+	/**
+	 * 形態素辞書
+	 */
+	private final TermDictionary termDictionary;
+
+	/**
+	 * 総文書数（書き込みロック中のみ変更）
+	 */
+	private int totalDocs;
+
+	/**
+	 * 全文書の形態素数の合計（書き込みロック中のみ変更）
+	 */
+	private long totalLength;
+
+	/**
+	 * コーパスバージョン（更新毎に増加）
+	 */
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param executor           バックグラウンド処理用エグゼキューター
+	 * @param path               セグメントの保存先（空の場合は一時ディレクトリ）
+	 * @param maxSegments        マージを始めるセグメント数
+	 * @param neighbors          文書毎に保持する近傍数（0の場合は近傍リストを作らない）
+	 * @param refreshThreshold   IDFモデルの再構築を始める未反映の変更数
+	 * @param scoring            スコアリング方式
+	 * @param k1                 BM25の出現頻度の飽和の強さ
+	 * @param b                  BM25の文書長の正規化の強さ
+	 * @param fusion             複数クエリのスコアの統合方式
+	 * @param rrfK               RRFの順位に加える定数
+	 * @param hnswM              HNSWグラフの各層の近傍数
+	 * @param hnswEfConstruction HNSWグラフの構築時の探索幅
+	 * @param hnswEfSearch       HNSWグラフの検索時の探索幅
+	 * @param hnswMinDocs        HNSWグラフを構築するコーパスの下限件数（0以下の場合は構築しない）
+	 * @param termDictionary     形態素辞書
+	 * @throws IOException 保存先を作成できない場合
+	 */
+	public LyricInvertedIndex(@Qualifier("nlpExecutor") final Executor executor,
+			@Value("${nlp.index.path:}") final String path, @Value("${nlp.index.max-segments:8}") final int maxSegments,
+			@Value("${nlp.vectors.neighbors:10}") final int neighbors,
+			@Value("${nlp.index.refresh-threshold:64}") final int refreshThreshold,
+			@Value("${nlp.scoring:COSINE}") final ScoringMode scoring, @Value("${nlp.bm25.k1:1.2}") final double k1,
+			@Value("${nlp.bm25.b:0.75}") final double b, @Value("${nlp.fusion.mode:MAX}") final FusionMode fusion,
+			@Value("${nlp.fusion.rrf-k:60}") final int rrfK, @Value("${nlp.hnsw.m:16}") final int hnswM,
+			@Value("${nlp.hnsw.ef-construction:200}") final int hnswEfConstruction,
+			@Value("${nlp.hnsw.ef-search:64}") final int hnswEfSearch,
+			@Value("${nlp.hnsw.min-docs:20000}") final int hnswMinDocs, final TermDictionary termDictionary)
+			throws IOException {
+		this.executor = executor;
+		this.temporary = CoStringUtils.isEmpty(path);
+		this.directory = this.temporary ? Files.createTempDirectory("lyric-index")
+				: Files.createDirectories(Path.of(path).toAbsolutePath());
+		this.maxSegments = Math.max(1, maxSegments);
+		this.neighbors = neighbors;
+		this.refreshThreshold = Math.max(1, refreshThreshold);
+		this.scoring = scoring;
+		this.k1 = k1;
+		this.b = b;
+		this.fusion = fusion;
+		this.rrfK = Math.max(0, rrfK);
+		this.hnswM = hnswM;
+		this.hnswEfConstruction = hnswEfConstruction;
+		this.hnswEfSearch = Math.max(1, hnswEfSearch);
+		this.hnswMinDocs = hnswMinDocs;
+		this.termDictionary = termDictionary;
+	}
+
+	/**
+	 * 文書頻度と総文書数へ文書を加える（書き込みロック取得済みであること）
+	 *
+	 * @param entry 索引する文書
+	 */
+	private void addDocument(final @NotNull LyricSegment.Entry entry) {
+		for (final int termId : entry.document().termIds()) {
+			this.adjustDocFreq(termId, 1);
+		}
+		this.totalDocs++;
+		this.totalLength += entry.document().length();
+	}
+
+	/**
+	 * 文書頻度を増減する（0になった形態素は取り除く）
+	 *
+	 * @param termId 形態素ID
+	 * @param delta  増減
+	 */
+	private void adjustDocFreq(final int termId, final int delta) {
+		if (this.docFreqs.addTo(termId, delta) + delta <= 0) {
+			this.docFreqs.remove(termId);
+		}
+	}
+
+	/**
+	 * 平均の形態素数を取得する（読み取りロック取得済みであること）
+	 *
+	 * @return 平均の形態素数（1以上）
+	 */
+	private double averageLength() {
+		return this.totalDocs == 0 ? 1.0 : Math.max(1.0, (double) this.totalLength / this.totalDocs);
+	}
+
+	/**
+	 * クエリとのBM25スコアを計算する
+	 * <p>
+	 * クエリの形態素のポスティングとセグメントの文書長のみを使う。スコアはクエリの上限スコア（出現頻度が無限大の場合）で割り、0以上1未満とする。
+	 *
+	 * @param query 解析済みクエリ
+	 * @return 賛美歌ID → 正規化済みのBM25スコア
+	 */
+	private @NotNull Long2DoubleOpenHashMap bm25(final @NotNull AnalyzedDocument query) {
+		final var result = new Long2DoubleOpenHashMap();
+		this.lock.readLock().lock();
+		try {
+			final double averageLength = this.averageLength();
+			this.bm25Weights(query).int2DoubleEntrySet().fastForEach(entry -> {
+				for (final LyricSegment segment : this.segments) {
+					segment.forEachPosting(entry.getIntKey(), (ordinal, frequency) -> {
+						if (segment.isLive(ordinal)) {
+							result.addTo(segment.idAt(ordinal), this.bm25Contribution(entry.getDoubleValue(), frequency,
+									this.lengthNorm(segment, ordinal, averageLength)));
+						}
+					});
+				}
+			});
+			return result;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 形態素一つ分のBM25スコアを計算する
+	 *
+	 * @param weight     形態素の重み
+	 * @param frequency  出現頻度
+	 * @param lengthNorm 文書長による正規化項
+	 * @return スコア
+	 */
+	private double bm25Contribution(final double weight, final int frequency, final double lengthNorm) {
+		return weight * frequency * (this.k1 + 1.0) / (frequency + lengthNorm);
+	}
+
+	/**
+	 * クエリの形態素毎のBM25の重みを求める（読み取りロック取得済みであること）
+	 * <p>
+	 * クエリの上限スコアで割った値とし、索引に含まれない形態素は除く。
+	 *
+	 * @param query 解析済みクエリ
+	 * @return 形態素ID → 重み
+	 */
+	private @NotNull Int2DoubleOpenHashMap bm25Weights(final @NotNull AnalyzedDocument query) {
+		final var weights = new Int2DoubleOpenHashMap(query.size());
+		double upperBound = 0.00;
+		for (var i = 0; i < query.size(); i++) {
+			final int termId = query.termIds()[i];
+			final int docFreq = this.docFreqs.get(termId);
+			if (docFreq > 0) {
+				final double weight = query.frequencies()[i] * IdfModel.bm25Idf(this.totalDocs, docFreq);
+				weights.put(termId, weight);
+				upperBound += weight * (this.k1 + 1.0);
+			}
+		}
+		if (upperBound > 0) {
+			final double scale = 1.0 / upperBound;
+			weights.int2DoubleEntrySet().fastForEach(entry -> entry.setValue(entry.getDoubleValue() * scale));
+		}
+		return weights;
+	}
+
+	/**
+	 * 一時ディレクトリの場合は停止時にセグメントを削除する
+	 */
+	@PreDestroy
+	public void close() {
+		final HnswGraph hnsw = this.graph;
+		if (!this.temporary && hnsw != null) {
+			try {
+				hnsw.write(this.directory.resolve(HnswGraph.FILE_NAME), this.termDictionary);
+			} catch (final IOException | RuntimeException e) {
+				log.warn("HNSWグラフを保存できませんでした：" + e.getMessage());
+			}
+		}
+		if (this.temporary) {
+			this.segments.forEach(this::deleteFile);
+			this.deleteFile(this.directory);
+		}
+	}
+
+	/**
+	 * セグメント一つ分の文書をMaxScore法で走査し、上位K件の候補を集める（読み取りロック取得済みであること）
+	 * <p>
+	 * 形態素をスコアの上限の昇順に並べ、上限の累計が現在の下限に届かない形態素（非必須）のポスティングからは文書を探さない。
+	 * 必須の形態素に現れた文書のみ、非必須の形態素を上限の大きい順に確かめ、上限を足しても下限に届かなくなった時点で打ち切る。
+	 *
+	 * @param segment      セグメント
+	 * @param termWeights  形態素ID → 重み
+	 * @param idfModel     IDFモデル（BM25の場合は使わない）
+	 * @param accept       順位の対象とする賛美歌
+	 * @param direct       形態素リストから計算済みのため走査しない賛美歌
+	 * @param collector    上位K件コレクター（文書は候補の番号）
+	 * @param candidateIds 候補の番号 → 賛美歌ID
+	 * @param scores       候補の番号 → スコア
+	 */
+	private void collectSegment(final @NotNull LyricSegment segment, final @NotNull Int2DoubleOpenHashMap termWeights,
+			final IdfModel idfModel, final @NotNull LongPredicate accept, final @NotNull LongSet direct,
+			final @NotNull TopKCollector collector, final @NotNull LongArrayList candidateIds,
+			final @NotNull DoubleArrayList scores) {
+		final double averageLength = this.averageLength();
+		final var found = new ArrayList<LyricSegment.PostingCursor>(termWeights.size());
+		final var foundWeights = new DoubleArrayList(termWeights.size());
+		final var foundBounds = new DoubleArrayList(termWeights.size());
+		termWeights.int2DoubleEntrySet().fastForEach(entry -> {
+			final LyricSegment.PostingCursor cursor = segment.cursor(entry.getIntKey());
+			if (cursor != null) {
+				found.add(cursor);
+				foundWeights.add(entry.getDoubleValue());
+				foundBounds.add(this.upperBound(entry.getIntKey(), entry.getDoubleValue(), cursor, idfModel,
+						averageLength));
+			}
+		});
+		final int size = found.size();
+		if (size == 0) {
+			return;
+		}
+		final var order = new int[size];
+		Arrays.setAll(order, i -> i);
+		IntArrays.quickSort(order, (a, b) -> Double.compare(foundBounds.getDouble(a), foundBounds.getDouble(b)));
+		final var cursors = new LyricSegment.PostingCursor[size];
+		final var weights = new double[size];
+		final var prefixBounds = new double[size];
+		for (var i = 0; i < size; i++) {
+			cursors[i] = found.get(order[i]);
+			weights[i] = foundWeights.getDouble(order[i]);
+			prefixBounds[i] = (i == 0 ? 0.00 : prefixBounds[i - 1]) + foundBounds.getDouble(order[i]);
+		}
+		double threshold = collector.threshold();
+		var essential = 0;
+		while (essential < size && prefixBounds[essential] < threshold) {
+			essential++;
+		}
+		while (essential < size) {
+			var doc = LyricSegment.PostingCursor.NO_MORE_DOCS;
+			for (int i = essential; i < size; i++) {
+				doc = Math.min(doc, cursors[i].doc());
+			}
+			if (doc == LyricSegment.PostingCursor.NO_MORE_DOCS) {
+				return;
+			}
+			final long id = segment.idAt(doc);
+			final boolean skip = !segment.isLive(doc) || direct.contains(id) || !accept.test(id);
+			final double factor = skip ? 0.00 : this.documentFactor(segment, doc, idfModel, averageLength);
+			double score = 0.00;
+			for (int i = essential; i < size; i++) {
+				if (cursors[i].doc() == doc) {
+					if (!skip) {
+						score += this.contribution(weights[i], cursors[i].frequency(), factor);
+					}
+					cursors[i].next();
+				}
+			}
+			if (skip) {
+				continue;
+			}
+			var pruned = false;
+			for (int i = essential - 1; i >= 0; i--) {
+				if (score + prefixBounds[i] < threshold) {
+					pruned = true;
+					break;
+				}
+				if (cursors[i].advance(doc) == doc) {
+					score += this.contribution(weights[i], cursors[i].frequency(), factor);
+				}
+			}
+			if (pruned || score <= 0 || !collector.collect(candidateIds.size(), score)) {
+				continue;
+			}
+			candidateIds.add(id);
+			scores.add(score);
+			threshold = collector.threshold();
+			while (essential < size && prefixBounds[essential] < threshold) {
+				essential++;
+			}
+		}
+	}
+
+	/**
+	 * 形態素一つ分のスコアを計算する
+	 *
+	 * @param weight    形態素の重み
+	 * @param frequency 出現頻度
+	 * @param factor    文書毎の係数（{@link #documentFactor}）
+	 * @return スコア
+	 */
+	private double contribution(final double weight, final int frequency, final double factor) {
+		return this.scoring == ScoringMode.BM25 ? this.bm25Contribution(weight, frequency, factor)
+				: weight * frequency * factor;
+	}
+
+	/**
+	 * クエリとのコサイン類似度を計算する
+	 * <p>
+	 * クエリの形態素を一つも含まない文書は結果に現れない（類似度0として扱う）。クエリの重みは現在の文書頻度から求め、
+	 * 文書ノルムは構築済みのIDFモデルから取得する。モデル構築後に変更された文書のノルムは現在のIDFで求める。
+	 *
+	 * @param query 解析済みクエリ
+	 * @return 賛美歌ID → コサイン類似度
+	 */
+	private @NotNull Long2DoubleOpenHashMap cosine(final @NotNull AnalyzedDocument query) {
+		final var result = new Long2DoubleOpenHashMap();
+		// 初回の構築は読み取りロックの外で行う
+		this.idfModel();
+		this.lock.readLock().lock();
+		try {
+			final IdfModel idfModel = this.model.get();
+			this.cosineWeights(query).int2DoubleEntrySet().fastForEach(entry -> {
+				for (final LyricSegment segment : this.segments) {
+					segment.forEachPosting(entry.getIntKey(), (ordinal, frequency) -> {
+						if (segment.isLive(ordinal)) {
+							result.addTo(segment.idAt(ordinal), entry.getDoubleValue() * frequency);
+						}
+					});
+				}
+			});
+			// 文書ノルムで割る
+			final ObjectIterator<Long2DoubleMap.Entry> iterator = result.long2DoubleEntrySet().fastIterator();
+			while (iterator.hasNext()) {
+				final Long2DoubleMap.Entry entry = iterator.next();
+				final long id = entry.getLongKey();
+				final double norm = this.changedAt.get(id) > idfModel.version() ? this.liveNorm(id)
+						: idfModel.normOf(id);
+				if (norm == 0) {
+					iterator.remove();
+				} else {
+					entry.setValue(entry.getDoubleValue() / norm);
+				}
+			}
+			return result;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 現在の文書頻度から正規化済みのクエリベクトルを求める（読み取りロック取得済みであること）
+	 *
+	 * @param query 解析済みクエリ
+	 * @return SparseVector（索引に含まれない形態素は除く）
+	 */
+	private @NotNull SparseVector cosineQuery(final @NotNull AnalyzedDocument query) {
+		final var raw = new Int2DoubleOpenHashMap(query.size());
+		for (var i = 0; i < query.size(); i++) {
+			final int termId = query.termIds()[i];
+			if (this.docFreqs.containsKey(termId)) {
+				raw.put(termId, query.frequencies()[i] * this.idf(termId));
+			}
+		}
+		return SparseVector.of(raw);
+	}
+
+	/**
+	 * クエリの形態素毎のコサイン類似度の重みを求める（読み取りロック取得済みであること）
+	 * <p>
+	 * 正規化済みのクエリベクトルの重みにIDFを掛けた値とし、出現頻度を掛けて文書ノルムで割ると類似度になる。
+	 *
+	 * @param query 解析済みクエリ
+	 * @return 形態素ID → 重み
+	 */
+	private @NotNull Int2DoubleOpenHashMap cosineWeights(final @NotNull AnalyzedDocument query) {
+		final SparseVector queryVector = this.cosineQuery(query);
+		final var weights = new Int2DoubleOpenHashMap(queryVector.size());
+		for (var k = 0; k < queryVector.size(); k++) {
+			final int termId = queryVector.termIdAt(k);
+			weights.put(termId, queryVector.weightAt(k) * this.idf(termId));
+		}
+		return weights;
+	}
+
+	/**
+	 * セグメント内の文書を削除済みにし、文書頻度と総文書数から除く（書き込みロック取得済みであること）
+	 *
+	 * @param segment   セグメント
+	 * @param ordinal   文書番号
+	 * @param changedAt 変更後のコーパスバージョン
+	 * @return 削除した場合はtrue
+	 */
+	private boolean deleteAt(final @NotNull LyricSegment segment, final int ordinal, final long changedAt) {
+		if (!segment.delete(ordinal)) {
+			return false;
+		}
+		segment.forEachTerm(ordinal, (termId, frequency) -> this.adjustDocFreq(termId, -1));
+		this.totalDocs--;
+		this.totalLength -= segment.lengthAt(ordinal);
+		this.changedAt.put(segment.idAt(ordinal), changedAt);
+		return true;
+	}
+
+	/**
+	 * 賛美歌を削除済みにする（書き込みロック取得済みであること）
+	 *
+	 * @param id        賛美歌ID
+	 * @param changedAt 変更後のコーパスバージョン
+	 * @return 削除した場合はtrue
+	 */
+	private boolean deleteDocument(final long id, final long changedAt) {
+		var changed = false;
+		for (final LyricSegment segment : this.segments) {
+			final int ordinal = segment.ordinalOf(id);
+			if (ordinal >= 0) {
+				changed |= this.deleteAt(segment, ordinal, changedAt);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * セグメントファイルを削除する
+	 *
+	 * @param file ファイル
+	 */
+	private void deleteFile(final @NotNull Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (final IOException e) {
+			log.warn("セグメントファイルを削除できませんでした：" + e.getMessage());
+		}
+	}
+
+	/**
+	 * セグメントファイルを削除する
+	 *
+	 * @param segment セグメント
+	 */
+	private void deleteFile(final @NotNull LyricSegment segment) {
+		this.deleteFile(segment.file());
+	}
+
+	/**
+	 * 文書毎のスコアの係数を求める（読み取りロック取得済みであること）
+	 *
+	 * @param segment       セグメント
+	 * @param ordinal       文書番号
+	 * @param idfModel      IDFモデル（BM25の場合は使わない）
+	 * @param averageLength 平均の形態素数
+	 * @return BM25の場合は文書長による正規化項、コサイン類似度の場合は文書ノルムの逆数（ノルムが0の場合は0）
+	 */
+	private double documentFactor(final @NotNull LyricSegment segment, final int ordinal, final IdfModel idfModel,
+			final double averageLength) {
+		if (this.scoring == ScoringMode.BM25) {
+			return this.lengthNorm(segment, ordinal, averageLength);
+		}
+		final long id = segment.idAt(ordinal);
+		final double norm = this.changedAt.get(id) > idfModel.version() ? this.liveNorm(id) : idfModel.normOf(id);
+		return norm == 0 ? 0.00 : 1.0 / norm;
+	}
+
+	/**
+	 * 索引済みの解析結果を取得する
+	 *
+	 * @param id 賛美歌ID
+	 * @return 未登録の場合はnull
+	 */
+	public AnalyzedDocument documentOf(final long id) {
+		this.lock.readLock().lock();
+		try {
+			for (final LyricSegment segment : this.segments) {
+				final int ordinal = segment.ordinalOf(id);
+				if (ordinal >= 0 && segment.isLive(ordinal)) {
+					return segment.documentAt(ordinal);
+				}
+			}
+			return null;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 形態素リストからスコアを直接計算する（読み取りロック取得済みであること）
+	 *
+	 * @param id            賛美歌ID
+	 * @param termWeights   形態素ID → 重み
+	 * @param idfModel      IDFモデル（BM25の場合は使わない）
+	 * @param averageLength 平均の形態素数
+	 * @return スコア（索引に含まれない場合は0）
+	 */
+	private double exactScore(final long id, final @NotNull Int2DoubleOpenHashMap termWeights,
+			final IdfModel idfModel, final double averageLength) {
+		for (final LyricSegment segment : this.segments) {
+			final int ordinal = segment.ordinalOf(id);
+			if (ordinal < 0 || !segment.isLive(ordinal)) {
+				continue;
+			}
+			final double factor = this.documentFactor(segment, ordinal, idfModel, averageLength);
+			final var sum = new double[1];
+			segment.forEachTerm(ordinal, (termId, frequency) -> {
+				final double weight = termWeights.get(termId);
+				if (weight > 0) {
+					sum[0] += this.contribution(weight, frequency, factor);
+				}
+			});
+			return sum[0];
+		}
+		return 0.00;
+	}
+
+	/**
+	 * 複数のクエリのスコアを統合する
+	 * <p>
+	 * 各クエリの形態素の重みを形態素毎にまとめ、全クエリの形態素の和集合のポスティングを一度だけ走査してクエリ毎のスコアを同時に求める。
+	 * 複数のクエリに一致した文書も候補としては一件にまとめ、{@link FusionMode}で統合する。クエリが一つの場合は{@link #score}と同じ結果となる。
+	 *
+	 * @param queries 解析済みクエリリスト
+	 * @return 賛美歌ID → 統合後のスコア
+	 */
+	public @NotNull Long2DoubleOpenHashMap fuse(final @NotNull List<AnalyzedDocument> queries) {
+		final var result = new Long2DoubleOpenHashMap();
+		if (queries.isEmpty()) {
+			return result;
+		}
+		final int size = queries.size();
+		final boolean bm25 = this.scoring == ScoringMode.BM25;
+		if (!bm25) {
+			// 初回の構築は読み取りロックの外で行う
+			this.idfModel();
+		}
+		this.lock.readLock().lock();
+		try {
+			final IdfModel idfModel = bm25 ? null : this.model.get();
+			// 形態素ID → クエリ毎の重み
+			final var termWeights = new Int2ObjectOpenHashMap<double[]>();
+			for (var q = 0; q < size; q++) {
+				final int query = q;
+				final AnalyzedDocument document = queries.get(q);
+				final Int2DoubleOpenHashMap weights = bm25 ? this.bm25Weights(document) : this.cosineWeights(document);
+				weights.int2DoubleEntrySet().fastForEach(entry -> {
+					final double[] perQuery = termWeights.computeIfAbsent(entry.getIntKey(), termId -> new double[size]);
+					perQuery[query] = entry.getDoubleValue();
+				});
+			}
+			final double averageLength = this.averageLength();
+			final var slots = new Long2IntOpenHashMap();
+			slots.defaultReturnValue(-1);
+			final var candidateIds = new LongArrayList();
+			final var scores = new DoubleArrayList();
+			for (final LyricSegment segment : this.segments) {
+				termWeights.int2ObjectEntrySet().fastForEach(entry -> {
+					final double[] weights = entry.getValue();
+					segment.forEachPosting(entry.getIntKey(), (ordinal, frequency) -> {
+						if (!segment.isLive(ordinal)) {
+							return;
+						}
+						final long id = segment.idAt(ordinal);
+						int slot = slots.get(id);
+						if (slot < 0) {
+							slot = candidateIds.size();
+							slots.put(id, slot);
+							candidateIds.add(id);
+							for (var q = 0; q < size; q++) {
+								scores.add(0.00);
+							}
+						}
+						// コサイン類似度の文書ノルムは走査後にまとめて割る
+						final double factor = bm25 ? this.lengthNorm(segment, ordinal, averageLength) : 1.0;
+						for (var q = 0; q < size; q++) {
+							if (weights[q] > 0) {
+								final int index = slot * size + q;
+								scores.set(index,
+										scores.getDouble(index) + this.contribution(weights[q], frequency, factor));
+							}
+						}
+					});
+				});
+			}
+			final double[] perQuery = scores.toDoubleArray();
+			if (!bm25) {
+				for (var c = 0; c < candidateIds.size(); c++) {
+					final long id = candidateIds.getLong(c);
+					final double norm = this.changedAt.get(id) > idfModel.version() ? this.liveNorm(id)
+							: idfModel.normOf(id);
+					for (var q = 0; q < size; q++) {
+						perQuery[c * size + q] = norm == 0 ? 0.00 : perQuery[c * size + q] / norm;
+					}
+				}
+			}
+			final double[] combined = this.fusion.combine(perQuery, size, this.rrfK);
+			for (var c = 0; c < combined.length; c++) {
+				if (combined[c] > 0) {
+					result.put(candidateIds.getLong(c), combined[c]);
+				}
+			}
+			return result;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 現在の文書頻度からIDFを計算する（読み取りロック取得済みであること）
+	 *
+	 * @param termId 形態素ID
+	 * @return IDF
+	 */
+	private double idf(final int termId) {
+		return IdfModel.idf(this.totalDocs, this.docFreqs.get(termId));
+	}
+
+	/**
+	 * 構築済みのIDFモデルを取得する
+	 * <p>
+	 * 初回のみ呼び出しスレッドで構築する。以降は更新中でも直前のモデルを返す。
+	 *
+	 * @return IdfModel
+	 */
+	public @NotNull IdfModel idfModel() {
+		final IdfModel current = this.model.get();
+		if (current != null) {
+			return current;
+		}
+		return this.rebuildModel();
+	}
+
+	/**
+	 * 索引済みの歌詞が最新かどうかを判断する
+	 *
+	 * @param id          賛美歌ID
+	 * @param contentHash 歌詞の内容ハッシュ
+	 * @return true/false
+	 */
+	public boolean isCurrent(final long id, final long contentHash) {
+		this.lock.readLock().lock();
+		try {
+			for (final LyricSegment segment : this.segments) {
+				final int ordinal = segment.ordinalOf(id);
+				if (ordinal >= 0 && segment.isLive(ordinal)) {
+					return segment.contentHashAt(ordinal) == contentHash;
+				}
+			}
+			return false;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * BM25の文書長による正規化項を求める
+	 *
+	 * @param segment       セグメント
+	 * @param ordinal       文書番号
+	 * @param averageLength 平均の形態素数
+	 * @return 正規化項
+	 */
+	private double lengthNorm(final @NotNull LyricSegment segment, final int ordinal, final double averageLength) {
+		return this.k1 * (1.0 - this.b + this.b * segment.lengthAt(ordinal) / averageLength);
+	}
+
+	/**
+	 * 現在のIDFで文書のTF-IDFベクトルのノルムを計算する（読み取りロック取得済みであること）
+	 *
+	 * @param id 賛美歌ID
+	 * @return 索引されていない場合は0
+	 */
+	private double liveNorm(final long id) {
+		final var sum = new double[1];
+		for (final LyricSegment segment : this.segments) {
+			final int ordinal = segment.ordinalOf(id);
+			if (ordinal >= 0 && segment.isLive(ordinal)) {
+				segment.forEachTerm(ordinal, (termId, frequency) -> {
+					final double weight = frequency * this.idf(termId);
+					sum[0] += weight * weight;
+				});
+				break;
+			}
+		}
+		return Math.sqrt(sum[0]);
+	}
+
+	/**
+	 * 全てのセグメントを一つへマージする（削除済みの文書は除く）
+	 * <p>
+	 * インデックスのモニターは開始時の削除状態の複製と世代の採番の間だけ持ち、マージ後のセグメントの書き出し中は書き込みを妨げない。
+	 * 差し替え時は書き込みロックの下で、開始後に削除された文書をマージ後のセグメントにも反映し、開始後に追加されたセグメントを残す。
+	 */
+	private void merge() {
+		synchronized (this.mergeLock) {
+			final List<LyricSegment> current;
+			final List<LyricSegment> snapshots;
+			final long next;
+			synchronized (this) {
+				current = this.segments;
+				if (current.size() <= 1) {
+					return;
+				}
+				// 以降に書き出すセグメントはマージ後のセグメントより新しい世代とする
+				next = this.generation.getAndIncrement();
+				this.lock.readLock().lock();
+				try {
+					snapshots = current.stream().map(LyricSegment::snapshot).toList();
+				} finally {
+					this.lock.readLock().unlock();
+				}
+			}
+			final long start = System.nanoTime();
+			final var entries = new ArrayList<LyricSegment.Entry>();
+			for (final LyricSegment segment : snapshots) {
+				for (var ordinal = 0; ordinal < segment.docCount(); ordinal++) {
+					if (segment.isLive(ordinal)) {
+						entries.add(new LyricSegment.Entry(segment.idAt(ordinal), segment.contentHashAt(ordinal),
+								segment.documentAt(ordinal)));
+					}
+				}
+			}
+			final LyricSegment merged;
+			try {
+				merged = this.writeSegment(next, entries);
+			} catch (final IOException e) {
+				log.warn("セグメントのマージに失敗しました：" + e.getMessage());
+				return;
+			}
+			this.lock.writeLock().lock();
+			try {
+				for (var i = 0; i < current.size(); i++) {
+					final LyricSegment segment = current.get(i);
+					for (var ordinal = 0; ordinal < segment.docCount(); ordinal++) {
+						if (!segment.isLive(ordinal) && snapshots.get(i).isLive(ordinal)) {
+							final int moved = merged.ordinalOf(segment.idAt(ordinal));
+							if (moved >= 0) {
+								merged.delete(moved);
+							}
+						}
+					}
+				}
+				final var replaced = new ArrayList<LyricSegment>();
+				replaced.add(merged);
+				this.segments.stream().filter(segment -> !current.contains(segment)).forEach(replaced::add);
+				this.segments = List.copyOf(replaced);
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+			current.forEach(this::deleteFile);
+			log.info("セグメントをマージしました。セグメント数：" + current.size() + "、文書数：" + entries.size() + "、所要時間："
+					+ (System.nanoTime() - start) / 1_000_000L + "ms");
+		}
+	}
+
+	/**
+	 * 保存済みのセグメントを読み込む（初回のみ）
+	 * <p>
+	 * 読み込めないセグメントと、形態素IDが現在の形態素辞書と一致しないセグメントは削除する。
+	 */
+	public synchronized void open() {
+		if (this.opened) {
+			return;
+		}
+		this.opened = true;
+		final var loaded = new ArrayList<LyricSegment>();
+		try (Stream<Path> files = Files.list(this.directory)) {
+			for (final Path file : files.filter(f -> f.getFileName().toString().endsWith(LyricSegment.EXTENSION))
+					.toList()) {
+				try {
+					final LyricSegment segment = LyricSegment.open(file);
+					if (segment.matches(this.termDictionary)) {
+						loaded.add(segment);
+						continue;
+					}
+					log.info("形態素辞書と一致しないため、セグメントを使用しません：" + file);
+				} catch (final IOException e) {
+					log.warn("セグメントを読み込めませんでした：" + e.getMessage());
+				}
+				this.deleteFile(file);
+			}
+		} catch (final IOException e) {
+			log.warn("セグメントの保存先を読み込めませんでした：" + e.getMessage());
+		}
+		loaded.sort(Comparator.comparingLong(LyricSegment::generation));
+		this.lock.writeLock().lock();
+		try {
+			// 同じ賛美歌は世代の新しいセグメントを有効とする
+			for (var i = 0; i < loaded.size(); i++) {
+				final LyricSegment newer = loaded.get(i);
+				for (var ordinal = 0; ordinal < newer.docCount(); ordinal++) {
+					final long id = newer.idAt(ordinal);
+					for (var j = 0; j < i; j++) {
+						final int older = loaded.get(j).ordinalOf(id);
+						if (older >= 0) {
+							loaded.get(j).delete(older);
+						}
+					}
+				}
+			}
+			this.segments = List.copyOf(loaded);
+			this.docFreqs.clear();
+			this.totalDocs = 0;
+			this.totalLength = 0L;
+			for (final LyricSegment segment : loaded) {
+				for (var ordinal = 0; ordinal < segment.docCount(); ordinal++) {
+					if (segment.isLive(ordinal)) {
+						this.totalDocs++;
+						this.totalLength += segment.lengthAt(ordinal);
+						segment.forEachTerm(ordinal, (termId, frequency) -> this.adjustDocFreq(termId, 1));
+					}
+				}
+			}
+			this.generation.set(loaded.isEmpty() ? 0L : loaded.get(loaded.size() - 1).generation() + 1L);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+		final Path file = this.directory.resolve(HnswGraph.FILE_NAME);
+		if (this.usesGraph() && Files.exists(file)) {
+			// 内容の食い違いは最初の同期で解消する
+			try {
+				this.graph = HnswGraph.read(file, this.hnswM, this.hnswEfConstruction, this.termDictionary);
+				log.info("HNSWグラフを読み込みました。件数：" + this.graph.size());
+			} catch (final IOException | RuntimeException e) {
+				log.info("HNSWグラフを使用しません：" + e.getMessage());
+				this.deleteFile(file);
+			}
+		}
+	}
+
+	/**
+	 * 全件走査よりHNSWグラフの探索の方が軽いかを判断する（読み取りロック取得済みであること）
+	 * <p>
+	 * 全件走査の手間はクエリの形態素の文書頻度の和、グラフの探索の手間は最下層で類似度を計算するノード数（探索幅 × 2M）と平均の形態素数の積で見積もる。
+	 * 形態素の少ないクエリはポスティングが短く、グラフでは再現率も下がるため全件走査とする。
+	 *
+	 * @param termWeights   形態素ID → 重み
+	 * @param averageLength 平均の形態素数
+	 * @return true/false
+	 */
+	private boolean prefersGraph(final @NotNull Int2DoubleOpenHashMap termWeights, final double averageLength) {
+		long postings = 0L;
+		for (final IntIterator iterator = termWeights.keySet().iterator(); iterator.hasNext();) {
+			postings += this.docFreqs.get(iterator.nextInt());
+		}
+		return postings > this.hnswEfSearch * this.hnswM * 2.0 * averageLength;
+	}
+
+	/**
+	 * データベースの有効な賛美歌とインデックスを突き合わせる
+	 * <p>
+	 * 有効でない賛美歌は削除済みとし、歌詞が変わった賛美歌を一つのセグメントとして書き出した後、IDFモデルを構築する。
+	 *
+	 * @param liveIds 有効な賛美歌ID
+	 * @param changed 新規または歌詞が変わった賛美歌
+	 * @throws IOException セグメントを書き出せない場合
+	 */
+	public synchronized void reconcile(final @NotNull LongSet liveIds, final @NotNull List<LyricSegment.Entry> changed)
+			throws IOException {
+		this.open();
+		final LyricSegment written = changed.isEmpty() ? null : this.writeSegment(changed);
+		this.lock.writeLock().lock();
+		try {
+			final long next = this.version.incrementAndGet();
+			for (final LyricSegment segment : this.segments) {
+				for (var ordinal = 0; ordinal < segment.docCount(); ordinal++) {
+					if (!liveIds.contains(segment.idAt(ordinal))) {
+						this.deleteAt(segment, ordinal, next);
+					}
+				}
+			}
+			if (written != null) {
+				changed.forEach(entry -> {
+					this.deleteDocument(entry.id(), next);
+					this.addDocument(entry);
+					this.changedAt.put(entry.id(), next);
+				});
+				this.segments = append(this.segments, written);
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+		this.rebuildModel();
+		this.scheduleMerge();
+	}
+
+	/**
+	 * 現在の文書頻度とセグメントからIDFモデルを構築して差し替える
+	 * <p>
+	 * 直前のモデルからの変更を引き継ぐため、構築は一度に一つだけ行う。読み込みロック中は文書頻度、総文書数、セグメントの削除状態、
+	 * 変更された賛美歌IDの複製のみを取り、文書ベクトルと近傍リストの構築はロックの外で行う。差し替え後、反映済みの変更を取り除く。
+	 *
+	 * @return 差し替え後のモデル
+	 */
+	private @NotNull IdfModel rebuildModel() {
+		synchronized (this.rebuildLock) {
+			final IdfModel current = this.model.get();
+			final long snapshot;
+			final int totalDocs;
+			final Int2IntOpenHashMap docFreqs;
+			final List<LyricSegment> segments;
+			final var changed = new LongOpenHashSet();
+			this.lock.readLock().lock();
+			try {
+				snapshot = this.version.get();
+				if (current != null && current.version() == snapshot) {
+					return current;
+				}
+				this.changedAt.long2LongEntrySet().fastForEach(entry -> {
+					if (current == null || entry.getLongValue() > current.version()) {
+						changed.add(entry.getLongKey());
+					}
+				});
+				totalDocs = this.totalDocs;
+				docFreqs = new Int2IntOpenHashMap(this.docFreqs);
+				segments = this.segments.stream().map(LyricSegment::snapshot).toList();
+			} finally {
+				this.lock.readLock().unlock();
+			}
+			final IdfModel rebuilt = IdfModel.build(snapshot, totalDocs, docFreqs, segments, this.neighbors, current,
+					changed);
+			this.model.set(rebuilt);
+			this.lock.writeLock().lock();
+			try {
+				final ObjectIterator<Long2LongMap.Entry> iterator = this.changedAt.long2LongEntrySet().fastIterator();
+				while (iterator.hasNext()) {
+					if (iterator.next().getLongValue() <= rebuilt.version()) {
+						iterator.remove();
+					}
+				}
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+			this.scheduleGraphSync();
+			return rebuilt;
+		}
+	}
+
+	/**
+	 * 未反映の変更があればIDFモデルの再構築をバックグラウンドで予約する
+	 */
+	@Scheduled(fixedDelayString = "${nlp.index.refresh-interval:PT1M}")
+	public void refreshModel() {
+		final IdfModel current = this.model.get();
+		if (current != null && current.version() != this.version.get()) {
+			this.scheduleRebuild();
+		}
+	}
+
+	/**
+	 * 関連する賛美歌を取得する
+	 * <p>
+	 * 構築済みのIDFモデルの近傍リストを類似度の高い順に返し、ラインナンバーは類似度によって判定する。
+	 *
+	 * @param id 賛美歌ID
+	 * @return 未登録の場合は空
+	 */
+	public @NotNull RankedPage related(final long id) {
+		final VectorStore vectors = this.idfModel().vectors();
+		final int ordinal = vectors.ordinalOf(id);
+		var count = 0;
+		while (ordinal >= 0 && count < vectors.neighborWidth() && vectors.neighborAt(ordinal, count) >= 0) {
+			count++;
+		}
+		final var ids = new long[count];
+		final var lineNumbers = new byte[count];
+		for (var rank = 0; rank < count; rank++) {
+			ids[rank] = vectors.idAt(vectors.neighborAt(ordinal, rank));
+			lineNumbers[rank] = (byte) LineNumber.of(vectors.neighborSimilarity(ordinal, rank)).ordinal();
+		}
+		return new RankedPage(ids, lineNumbers);
+	}
+
+	/**
+	 * 文書を削除する
+	 *
+	 * @param id 賛美歌ID
+	 */
+	public synchronized void remove(final long id) {
+		final int pending;
+		this.lock.writeLock().lock();
+		try {
+			if (!this.deleteDocument(id, this.version.get() + 1L)) {
+				return;
+			}
+			this.version.incrementAndGet();
+			pending = this.changedAt.size();
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+		if (pending >= this.refreshThreshold) {
+			this.scheduleRebuild();
+		}
+	}
+
+	/**
+	 * HNSWグラフの同期をバックグラウンドで予約する（予約済みの場合は何もしない）
+	 */
+	private void scheduleGraphSync() {
+		if (!this.usesGraph() || !this.graphScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.executor.execute(() -> {
+				this.graphScheduled.set(false);
+				try {
+					this.syncGraph();
+				} catch (final RuntimeException e) {
+					log.warn("HNSWグラフの同期に失敗しました：" + e.getMessage());
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			this.graphScheduled.set(false);
+		}
+	}
+
+	/**
+	 * セグメントのマージをバックグラウンドで予約する（セグメント数が上限以下または予約済みの場合は何もしない）
+	 */
+	private void scheduleMerge() {
+		if (this.segments.size() <= this.maxSegments || !this.mergeScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.executor.execute(() -> {
+				this.mergeScheduled.set(false);
+				try {
+					this.merge();
+				} catch (final RuntimeException e) {
+					log.warn("セグメントのマージに失敗しました：" + e.getMessage());
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			this.mergeScheduled.set(false);
+		}
+	}
+
+	/**
+	 * IDFモデルの再構築をバックグラウンドで予約する（予約済みの場合は何もしない）
+	 */
+	private void scheduleRebuild() {
+		if (!this.rebuildScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.executor.execute(() -> {
+				this.rebuildScheduled.set(false);
+				try {
+					this.rebuildModel();
+				} catch (final RuntimeException e) {
+					log.warn("IDFモデルの再構築に失敗しました：" + e.getMessage());
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			this.rebuildScheduled.set(false);
+			this.rebuildModel();
+		}
+	}
+
+	/**
+	 * 設定されたスコアリング方式でクエリとのスコアを計算する
+	 *
+	 * @param query 解析済みクエリ
+	 * @return 賛美歌ID → スコア（0以上1以下）
+	 */
+	public @NotNull Long2DoubleOpenHashMap score(final @NotNull AnalyzedDocument query) {
+		if (query.isEmpty()) {
+			return new Long2DoubleOpenHashMap();
+		}
+		return this.scoring == ScoringMode.BM25 ? this.bm25(query) : this.cosine(query);
+	}
+
+	/**
+	 * スコアリング方式を取得する
+	 *
+	 * @return ScoringMode
+	 */
+	public @NotNull ScoringMode scoring() {
+		return this.scoring;
+	}
+
+	/**
+	 * HNSWグラフを構築済みのIDFモデルに合わせる
+	 * <p>
+	 * 内容ハッシュが一致しない賛美歌のみ追加し直し、有効でない賛美歌は削除済みにする。グラフが無い場合と、削除済みのノードが有効なノードの4分の1を超えた場合は
+	 * 新しいグラフを構築してから差し替える（削除済みのノードも探索の経路に使うため、ベクトルとリンクは再構築まで残る）。
+	 * コーパスが下限件数に満たない場合はグラフを使わない。モデル構築後に変更された賛美歌は次回の同期で反映する。
+	 */
+	private void syncGraph() {
+		synchronized (this.graphLock) {
+			final IdfModel idfModel = this.model.get();
+			if (idfModel == null) {
+				return;
+			}
+			final VectorStore vectors = idfModel.vectors();
+			if (vectors.size() < this.hnswMinDocs) {
+				this.graph = null;
+				return;
+			}
+			final long start = System.nanoTime();
+			final HnswGraph current = this.graph;
+			final boolean rebuild = current == null || current.deletedCount() * 4 > current.size();
+			final HnswGraph target = rebuild ? new HnswGraph(this.hnswM, this.hnswEfConstruction, idfModel.version())
+					: current;
+			final var liveIds = new LongOpenHashSet(vectors.size());
+			final var stale = new Long2LongOpenHashMap();
+			this.lock.readLock().lock();
+			try {
+				for (final LyricSegment segment : this.segments) {
+					for (var ordinal = 0; ordinal < segment.docCount(); ordinal++) {
+						if (!segment.isLive(ordinal)) {
+							continue;
+						}
+						final long id = segment.idAt(ordinal);
+						final long contentHash = segment.contentHashAt(ordinal);
+						liveIds.add(id);
+						if (this.changedAt.get(id) <= idfModel.version() && !target.isCurrent(id, contentHash)) {
+							stale.put(id, contentHash);
+						}
+					}
+				}
+			} finally {
+				this.lock.readLock().unlock();
+			}
+			final int removed = target.retainAll(liveIds);
+			stale.long2LongEntrySet().fastForEach(entry -> {
+				final int ordinal = vectors.ordinalOf(entry.getLongKey());
+				if (ordinal >= 0) {
+					target.insert(entry.getLongKey(), entry.getLongValue(), vectors.vectorAt(ordinal));
+				}
+			});
+			this.graph = target;
+			if (rebuild || removed + stale.size() > 0) {
+				log.info("HNSWグラフを同期しました。件数：" + target.size() + "、追加：" + stale.size() + "、削除：" + removed
+						+ "、所要時間：" + (System.nanoTime() - start) / 1_000_000L + "ms");
+			}
+		}
+	}
+
+	/**
+	 * 上位K件に入り得る文書のスコアのみを計算する
+	 * <p>
+	 * セグメント毎にMaxScore法で走査し、形態素毎のスコアの上限を足しても上位K件の下限に届かない文書はスコアを計算しない。
+	 * コサイン類似度でHNSWグラフが構築済みで、走査するポスティングが十分に多い場合は、近似最近傍探索で得た候補のみを計算する（近似のため上位K件を取りこぼすことがある）。
+	 * {@code always}の賛美歌と、コサイン類似度の場合にIDFモデル構築後に変更された賛美歌は、形態素リストから直接計算する。
+	 *
+	 * @param query  解析済みクエリ
+	 * @param limit  件数（K）
+	 * @param accept 順位の対象とする賛美歌
+	 * @param always 順位と関係なくスコアを求める賛美歌
+	 * @return 賛美歌ID → スコア（{@code accept}の上位K件と、{@code always}のうちスコアが正のもの）
+	 */
+	public @NotNull Long2DoubleOpenHashMap topScores(final @NotNull AnalyzedDocument query, final int limit,
+			final @NotNull LongPredicate accept, final @NotNull LongSet always) {
+		final var result = new Long2DoubleOpenHashMap();
+		if (query.isEmpty()) {
+			return result;
+		}
+		final boolean bm25 = this.scoring == ScoringMode.BM25;
+		if (!bm25) {
+			// 初回の構築は読み取りロックの外で行う
+			this.idfModel();
+		}
+		this.lock.readLock().lock();
+		try {
+			final IdfModel idfModel = bm25 ? null : this.model.get();
+			final Int2DoubleOpenHashMap termWeights = bm25 ? this.bm25Weights(query) : this.cosineWeights(query);
+			if (termWeights.isEmpty()) {
+				return result;
+			}
+			final double averageLength = this.averageLength();
+			final var direct = new LongOpenHashSet(always);
+			if (!bm25) {
+				this.changedAt.long2LongEntrySet().fastForEach(entry -> {
+					if (entry.getLongValue() > idfModel.version()) {
+						direct.add(entry.getLongKey());
+					}
+				});
+			}
+			final var collector = new TopKCollector(limit);
+			final var candidateIds = new LongArrayList();
+			final var scores = new DoubleArrayList();
+			for (final LongIterator iterator = direct.iterator(); iterator.hasNext();) {
+				final long id = iterator.nextLong();
+				final double score = this.exactScore(id, termWeights, idfModel, averageLength);
+				if (score > 0 && always.contains(id)) {
+					result.put(id, score);
+				}
+				if (score > 0 && accept.test(id) && collector.collect(candidateIds.size(), score)) {
+					candidateIds.add(id);
+					scores.add(score);
+				}
+			}
+			final HnswGraph hnsw = bm25 ? null : this.graph;
+			if (hnsw != null && this.prefersGraph(termWeights, averageLength)) {
+				// 近似最近傍探索の候補のみ形態素リストから計算し直す
+				final LongIterator iterator = hnsw
+						.search(this.cosineQuery(query), Math.max(limit, this.hnswEfSearch), this.hnswEfSearch)
+						.keySet().iterator();
+				while (iterator.hasNext()) {
+					final long id = iterator.nextLong();
+					if (direct.contains(id) || !accept.test(id)) {
+						continue;
+					}
+					final double score = this.exactScore(id, termWeights, idfModel, averageLength);
+					if (score > 0 && collector.collect(candidateIds.size(), score)) {
+						candidateIds.add(id);
+						scores.add(score);
+					}
+				}
+			} else {
+				for (final LyricSegment segment : this.segments) {
+					this.collectSegment(segment, termWeights, idfModel, accept, direct, collector, candidateIds,
+							scores);
+				}
+			}
+			for (final int candidate : collector.drain()) {
+				result.put(candidateIds.getLong(candidate), scores.getDouble(candidate));
+			}
+			return result;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 形態素一つ分のスコアの上限を求める
+	 * <p>
+	 * BM25の場合はセグメントの最大出現頻度と最短の形態素数から、コサイン類似度の場合はIDFモデルの正規化済みの重みの最大値から求める。
+	 * IDFモデルに含まれない形態素はモデル構築後に変更された文書にしか現れないため、上限を0とする。
+	 *
+	 * @param termId        形態素ID
+	 * @param weight        形態素の重み
+	 * @param cursor        ポスティングのカーソル
+	 * @param idfModel      IDFモデル（BM25の場合は使わない）
+	 * @param averageLength 平均の形態素数
+	 * @return 上限
+	 */
+	private double upperBound(final int termId, final double weight, final LyricSegment.@NotNull PostingCursor cursor,
+			final IdfModel idfModel, final double averageLength) {
+		if (this.scoring == ScoringMode.BM25) {
+			final double lengthNorm = this.k1 * (1.0 - this.b + this.b * cursor.minLength() / averageLength);
+			return this.bm25Contribution(weight, cursor.maxFrequency(), lengthNorm);
+		}
+		final double modelIdf = idfModel.idf().get(termId);
+		return modelIdf == 0 ? 0.00
+				: weight / modelIdf * idfModel.vectors().maxWeightOf(termId) * (1.0 + BOUND_TOLERANCE);
+	}
+
+	/**
+	 * 文書を追加または置換する
+	 *
+	 * @param entry 索引する文書
+	 */
+	public synchronized void upsert(final @NotNull LyricSegment.Entry entry) {
+		final LyricSegment written;
+		try {
+			written = this.writeSegment(List.of(entry));
+		} catch (final IOException e) {
+			log.warn("セグメントを書き出せませんでした：" + e.getMessage());
+			return;
+		}
+		final int pending;
+		this.lock.writeLock().lock();
+		try {
+			final long next = this.version.incrementAndGet();
+			this.deleteDocument(entry.id(), next);
+			this.addDocument(entry);
+			this.changedAt.put(entry.id(), next);
+			this.segments = append(this.segments, written);
+			pending = this.changedAt.size();
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+		if (pending >= this.refreshThreshold) {
+			this.scheduleRebuild();
+		}
+		this.scheduleMerge();
+	}
+
+	/**
+	 * HNSWグラフを使う設定かを判断する
+	 *
+	 * @return コサイン類似度で、グラフを構築するコーパスの下限件数が正の場合はtrue
+	 */
+	private boolean usesGraph() {
+		return this.scoring == ScoringMode.COSINE && this.hnswMinDocs > 0;
+	}
+
+	/**
+	 * 現在のコーパスバージョンを取得する
+	 *
+	 * @return コーパスバージョン
+	 */
+	public long version() {
+		return this.version.get();
+	}
+
+	/**
+	 * 次の世代のセグメントを書き出す
+	 *
+	 * @param entries 索引する文書
+	 * @return LyricSegment
+	 * @throws IOException 書き出せない場合
+	 */
+	private @NotNull LyricSegment writeSegment(final @NotNull List<LyricSegment.Entry> entries) throws IOException {
+		return this.writeSegment(this.generation.getAndIncrement(), entries);
+	}
+
+	/**
+	 * 採番済みの世代のセグメントを書き出す
+	 *
+	 * @param next    世代
+	 * @param entries 索引する文書
+	 * @return LyricSegment
+	 * @throws IOException 書き出せない場合
+	 */
+	private @NotNull LyricSegment writeSegment(final long next, final @NotNull List<LyricSegment.Entry> entries)
+			throws IOException {
+		return LyricSegment.write(this.directory.resolve(String.format("%019d", next) + LyricSegment.EXTENSION),
+				next, entries, this.termDictionary);
+	}
+
+}
@@ -0,0 +1,676 @@
+package app.preach.gospel.nlp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * 歌詞インデックスのセグメント
+ * <p>
+ * 一度書き出したら変更しないファイルをメモリマップで読む。ヒープに載るのは削除済みの文書を表すビットセットのみ。
+ * ファイルは次の順に並び、整数は全てビッグエンディアン、可変長整数はLEB128とする。
+ * <ul>
+ * <li>ヘッダー：識別子、形式バージョン、世代、文書数、形態素数</li>
+ * <li>文書表（賛美歌ID昇順・固定長）：賛美歌ID、内容ハッシュ、形態素の総数、形態素リストの位置、異なり形態素数</li>
+ * <li>形態素表（形態素ID昇順・固定長）：形態素ID、文書頻度、ポスティングの位置、形態素文字列の位置、最大出現頻度、出現する文書の最短の形態素数</li>
+ * <li>データ：文書毎の形態素リスト（形態素IDの差分、出現頻度）、形態素毎のポスティング（文書番号の差分、出現頻度）、形態素文字列（UTF-8）</li>
+ * </ul>
+ * 形態素表の最大出現頻度と最短の形態素数は、検索時に形態素毎のスコアの上限を求めるために使う。
+ *
+ * @author ArkamaHozota
+ */
+public final class LyricSegment {
+
+	/**
+	 * 索引する文書
+	 *
+	 * @param id          賛美歌ID
+	 * @param contentHash 歌詞の内容ハッシュ
+	 * @param document    解析済み文書
+	 */
+	public record Entry(long id, long contentHash, AnalyzedDocument document) {
+	}
+
+	/**
+	 * 形態素IDまたは文書番号と出現頻度の組を受け取る処理
+	 */
+	@FunctionalInterface
+	public interface FrequencyVisitor {
+
+		/**
+		 * 一組を受け取る
+		 *
+		 * @param key       形態素IDまたは文書番号
+		 * @param frequency 出現頻度
+		 */
+		void visit(int key, int frequency);
+
+	}
+
+	/**
+	 * ポスティングのカーソル
+	 * <p>
+	 * 文書番号の昇順に一件ずつ進む。終端に達した後の文書番号は{@link #NO_MORE_DOCS}となる。
+	 */
+	public static final class PostingCursor {
+
+		/**
+		 * 終端の文書番号
+		 */
+		public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+		/**
+		 * 現在の文書番号
+		 */
+		private int doc;
+
+		/**
+		 * 現在の出現頻度
+		 */
+		private int frequency;
+
+		/**
+		 * 読み込み位置を持つバッファ
+		 */
+		private final ByteBuffer input;
+
+		/**
+		 * 最大出現頻度
+		 */
+		private final int maxFrequency;
+
+		/**
+		 * 出現する文書の最短の形態素数
+		 */
+		private final int minLength;
+
+		/**
+		 * 未読の件数
+		 */
+		private int remaining;
+
+		/**
+		 * コンストラクタ（最初の文書へ進めた状態で作る）
+		 *
+		 * @param input        読み込み位置を持つバッファ
+		 * @param docFreq      文書頻度
+		 * @param maxFrequency 最大出現頻度
+		 * @param minLength    出現する文書の最短の形態素数
+		 */
+		private PostingCursor(final ByteBuffer input, final int docFreq, final int maxFrequency,
+				final int minLength) {
+			this.input = input;
+			this.remaining = docFreq;
+			this.maxFrequency = maxFrequency;
+			this.minLength = minLength;
+			this.next();
+		}
+
+		/**
+		 * 指定した文書番号以上の最初の文書へ進める
+		 *
+		 * @param target 文書番号
+		 * @return 進めた後の文書番号
+		 */
+		public int advance(final int target) {
+			while (this.doc < target) {
+				this.next();
+			}
+			return this.doc;
+		}
+
+		/**
+		 * 現在の文書番号を取得する
+		 *
+		 * @return 文書番号、終端の場合は{@link #NO_MORE_DOCS}
+		 */
+		public int doc() {
+			return this.doc;
+		}
+
+		/**
+		 * 現在の出現頻度を取得する
+		 *
+		 * @return 出現頻度
+		 */
+		public int frequency() {
+			return this.frequency;
+		}
+
+		/**
+		 * 最大出現頻度を取得する
+		 *
+		 * @return 最大出現頻度
+		 */
+		public int maxFrequency() {
+			return this.maxFrequency;
+		}
+
+		/**
+		 * 出現する文書の最短の形態素数を取得する
+		 *
+		 * @return 形態素数
+		 */
+		public int minLength() {
+			return this.minLength;
+		}
+
+		/**
+		 * 次の文書へ進める
+		 *
+		 * @return 進めた後の文書番号
+		 */
+		public int next() {
+			if (this.remaining == 0) {
+				this.doc = NO_MORE_DOCS;
+				return this.doc;
+			}
+			this.remaining--;
+			this.doc += readVarint(this.input);
+			this.frequency = readVarint(this.input);
+			return this.doc;
+		}
+
+	}
+
+	/**
+	 * 文書表の1件のバイト数
+	 */
+	private static final int DOC_ENTRY_SIZE = 28;
+
+	/**
+	 * ファイル拡張子
+	 */
+	public static final String EXTENSION = ".lseg";
+
+	/**
+	 * ファイル形式のバージョン
+	 */
+	private static final int FORMAT_VERSION = 2;
+
+	/**
+	 * ヘッダーのバイト数
+	 */
+	private static final int HEADER_SIZE = 24;
+
+	/**
+	 * ファイル形式の識別子
+	 */
+	private static final int MAGIC = 0x4C534547;
+
+	/**
+	 * 形態素表の1件のバイト数
+	 */
+	private static final int TERM_ENTRY_SIZE = 24;
+
+	/**
+	 * セグメントファイルを開く
+	 *
+	 * @param file セグメントファイル
+	 * @return LyricSegment
+	 * @throws IOException 読み込めない場合または形式が異なる場合
+	 */
+	public static @NotNull LyricSegment open(final @NotNull Path file) throws IOException {
+		try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size < HEADER_SIZE) {
+				throw new IOException("セグメントの形式が異なります：" + file);
+			}
+			final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+				throw new IOException("セグメントの形式が異なります：" + file);
+			}
+			final long generation = buffer.getLong(8);
+			final int docCount = buffer.getInt(16);
+			final int termCount = buffer.getInt(20);
+			if (docCount < 0 || termCount < 0
+					|| HEADER_SIZE + (long) docCount * DOC_ENTRY_SIZE + (long) termCount * TERM_ENTRY_SIZE > size) {
+				throw new IOException("セグメントが壊れています：" + file);
+			}
+			return new LyricSegment(file, buffer, generation, docCount, termCount);
+		}
+	}
+
+	/**
+	 * 可変長整数を読む
+	 *
+	 * @param input 読み込み位置を持つバッファ
+	 * @return 値
+	 */
+	private static int readVarint(final @NotNull ByteBuffer input) {
+		var value = 0;
+		var shift = 0;
+		byte b;
+		do {
+			b = input.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	/**
+	 * セグメントファイルを書き出して開く（一時ファイルへ書き出してから置き換える）
+	 *
+	 * @param file           セグメントファイル
+	 * @param generation     世代
+	 * @param entries        索引する文書（賛美歌IDの重複なし）
+	 * @param termDictionary 形態素辞書
+	 * @return LyricSegment
+	 * @throws IOException 書き込めない場合
+	 */
+	public static @NotNull LyricSegment write(final @NotNull Path file, final long generation,
+			final @NotNull List<Entry> entries, final @NotNull TermDictionary termDictionary) throws IOException {
+		final var sorted = new ArrayList<>(entries);
+		sorted.sort(Comparator.comparingLong(Entry::id));
+		final var postings = new Int2ObjectOpenHashMap<IntArrayList>();
+		for (var ordinal = 0; ordinal < sorted.size(); ordinal++) {
+			final AnalyzedDocument document = sorted.get(ordinal).document();
+			for (var i = 0; i < document.size(); i++) {
+				final IntArrayList posting = postings.computeIfAbsent(document.termIds()[i], k -> new IntArrayList());
+				posting.add(ordinal);
+				posting.add(document.frequencies()[i]);
+			}
+		}
+		final int[] termIds = postings.keySet().toIntArray();
+		Arrays.sort(termIds);
+		final int dataOffset = HEADER_SIZE + sorted.size() * DOC_ENTRY_SIZE + termIds.length * TERM_ENTRY_SIZE;
+		final var data = new ByteArrayOutputStream();
+		final var forwardOffsets = new int[sorted.size()];
+		for (var ordinal = 0; ordinal < sorted.size(); ordinal++) {
+			final AnalyzedDocument document = sorted.get(ordinal).document();
+			forwardOffsets[ordinal] = dataOffset + data.size();
+			var previous = 0;
+			for (var i = 0; i < document.size(); i++) {
+				writeVarint(data, document.termIds()[i] - previous);
+				writeVarint(data, document.frequencies()[i]);
+				previous = document.termIds()[i];
+			}
+		}
+		final var postingOffsets = new int[termIds.length];
+		for (var t = 0; t < termIds.length; t++) {
+			final IntArrayList posting = postings.get(termIds[t]);
+			postingOffsets[t] = dataOffset + data.size();
+			var previous = 0;
+			for (var j = 0; j < posting.size(); j += 2) {
+				writeVarint(data, posting.getInt(j) - previous);
+				writeVarint(data, posting.getInt(j + 1));
+				previous = posting.getInt(j);
+			}
+		}
+		final var nameOffsets = new int[termIds.length];
+		for (var t = 0; t < termIds.length; t++) {
+			final byte[] name = termDictionary.termOf(termIds[t]).getBytes(StandardCharsets.UTF_8);
+			nameOffsets[t] = dataOffset + data.size();
+			writeVarint(data, name.length);
+			data.write(name);
+		}
+		final Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+				output.writeInt(MAGIC);
+				output.writeInt(FORMAT_VERSION);
+				output.writeLong(generation);
+				output.writeInt(sorted.size());
+				output.writeInt(termIds.length);
+				for (var ordinal = 0; ordinal < sorted.size(); ordinal++) {
+					final Entry entry = sorted.get(ordinal);
+					output.writeLong(entry.id());
+					output.writeLong(entry.contentHash());
+					output.writeInt(entry.document().length());
+					output.writeInt(forwardOffsets[ordinal]);
+					output.writeInt(entry.document().size());
+				}
+				for (var t = 0; t < termIds.length; t++) {
+					final IntArrayList posting = postings.get(termIds[t]);
+					var maxFrequency = 0;
+					var minLength = Integer.MAX_VALUE;
+					for (var j = 0; j < posting.size(); j += 2) {
+						maxFrequency = Math.max(maxFrequency, posting.getInt(j + 1));
+						minLength = Math.min(minLength, sorted.get(posting.getInt(j)).document().length());
+					}
+					output.writeInt(termIds[t]);
+					output.writeInt(posting.size() / 2);
+					output.writeInt(postingOffsets[t]);
+					output.writeInt(nameOffsets[t]);
+					output.writeInt(maxFrequency);
+					output.writeInt(minLength);
+				}
+				data.writeTo(output);
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException | RuntimeException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		return open(file);
+	}
+
+	/**
+	 * 可変長整数を書く
+	 *
+	 * @param output 出力先
+	 * @param value  値（0以上）
+	 */
+	private static void writeVarint(final @NotNull ByteArrayOutputStream output, final int value) {
+		var remaining = value;
+		while ((remaining & ~0x7F) != 0) {
+			output.write(remaining & 0x7F | 0x80);
+			remaining >>>= 7;
+		}
+		output.write(remaining);
+	}
+
+	/**
+	 * メモリマップしたファイル
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * 削除済みの文書番号
+	 */
+	private final BitSet deleted = new BitSet();
+
+	/**
+	 * 文書数
+	 */
+	private final int docCount;
+
+	/**
+	 * セグメントファイル
+	 */
+	private final Path file;
+
+	/**
+	 * 世代（新しいセグメントほど大きい）
+	 */
+	private final long generation;
+
+	/**
+	 * 形態素数
+	 */
+	private final int termCount;
+
+	/**
+	 * 形態素表の位置
+	 */
+	private final int termTableOffset;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param file       セグメントファイル
+	 * @param buffer     メモリマップしたファイル
+	 * @param generation 世代
+	 * @param docCount   文書数
+	 * @param termCount  形態素数
+	 */
+	private LyricSegment(final Path file, final ByteBuffer buffer, final long generation, final int docCount,
+			final int termCount) {
+		this.file = file;
+		this.buffer = buffer;
+		this.generation = generation;
+		this.docCount = docCount;
+		this.termCount = termCount;
+		this.termTableOffset = HEADER_SIZE + docCount * DOC_ENTRY_SIZE;
+	}
+
+	/**
+	 * 文書の内容ハッシュを取得する
+	 *
+	 * @param ordinal 文書番号
+	 * @return 内容ハッシュ
+	 */
+	public long contentHashAt(final int ordinal) {
+		return this.buffer.getLong(HEADER_SIZE + ordinal * DOC_ENTRY_SIZE + 8);
+	}
+
+	/**
+	 * 形態素のポスティングのカーソルを作成する（削除済みの文書を含む）
+	 *
+	 * @param termId 形態素ID
+	 * @return 形態素を含まない場合はnull
+	 */
+	public PostingCursor cursor(final int termId) {
+		final int index = this.termIndexOf(termId);
+		if (index < 0) {
+			return null;
+		}
+		final int entry = this.termTableOffset + index * TERM_ENTRY_SIZE;
+		return new PostingCursor(this.buffer.duplicate().position(this.buffer.getInt(entry + 8)),
+				this.buffer.getInt(entry + 4), this.buffer.getInt(entry + 16), this.buffer.getInt(entry + 20));
+	}
+
+	/**
+	 * 文書を削除済みにする（インデックスの書き込みロック取得済みであること）
+	 *
+	 * @param ordinal 文書番号
+	 * @return 削除した場合はtrue、削除済みの場合はfalse
+	 */
+	public boolean delete(final int ordinal) {
+		if (this.deleted.get(ordinal)) {
+			return false;
+		}
+		this.deleted.set(ordinal);
+		return true;
+	}
+
+	/**
+	 * 文書数（削除済みを含む）を取得する
+	 *
+	 * @return 文書数
+	 */
+	public int docCount() {
+		return this.docCount;
+	}
+
+	/**
+	 * 解析済み文書を復元する
+	 *
+	 * @param ordinal 文書番号
+	 * @return AnalyzedDocument
+	 */
+	public @NotNull AnalyzedDocument documentAt(final int ordinal) {
+		final int size = this.buffer.getInt(HEADER_SIZE + ordinal * DOC_ENTRY_SIZE + 24);
+		final var termIds = new int[size];
+		final var frequencies = new int[size];
+		final var cursor = new int[1];
+		this.forEachTerm(ordinal, (termId, frequency) -> {
+			termIds[cursor[0]] = termId;
+			frequencies[cursor[0]++] = frequency;
+		});
+		return new AnalyzedDocument(termIds, frequencies, this.lengthAt(ordinal));
+	}
+
+	/**
+	 * セグメントファイルを取得する
+	 *
+	 * @return Path
+	 */
+	public @NotNull Path file() {
+		return this.file;
+	}
+
+	/**
+	 * 形態素のポスティングを文書番号の昇順に走査する（削除済みの文書を含む）
+	 *
+	 * @param termId  形態素ID
+	 * @param visitor 文書番号と出現頻度を受け取る処理
+	 */
+	public void forEachPosting(final int termId, final @NotNull FrequencyVisitor visitor) {
+		final int index = this.termIndexOf(termId);
+		if (index < 0) {
+			return;
+		}
+		final int entry = this.termTableOffset + index * TERM_ENTRY_SIZE;
+		final int docFreq = this.buffer.getInt(entry + 4);
+		final ByteBuffer input = this.buffer.duplicate().position(this.buffer.getInt(entry + 8));
+		var ordinal = 0;
+		for (var i = 0; i < docFreq; i++) {
+			ordinal += readVarint(input);
+			visitor.visit(ordinal, readVarint(input));
+		}
+	}
+
+	/**
+	 * 文書の形態素を形態素IDの昇順に走査する
+	 *
+	 * @param ordinal 文書番号
+	 * @param visitor 形態素IDと出現頻度を受け取る処理
+	 */
+	public void forEachTerm(final int ordinal, final @NotNull FrequencyVisitor visitor) {
+		final int entry = HEADER_SIZE + ordinal * DOC_ENTRY_SIZE;
+		final int size = this.buffer.getInt(entry + 24);
+		final ByteBuffer input = this.buffer.duplicate().position(this.buffer.getInt(entry + 20));
+		var termId = 0;
+		for (var i = 0; i < size; i++) {
+			termId += readVarint(input);
+			visitor.visit(termId, readVarint(input));
+		}
+	}
+
+	/**
+	 * 世代を取得する
+	 *
+	 * @return 世代
+	 */
+	public long generation() {
+		return this.generation;
+	}
+
+	/**
+	 * 文書の賛美歌IDを取得する
+	 *
+	 * @param ordinal 文書番号
+	 * @return 賛美歌ID
+	 */
+	public long idAt(final int ordinal) {
+		return this.buffer.getLong(HEADER_SIZE + ordinal * DOC_ENTRY_SIZE);
+	}
+
+	/**
+	 * 文書が削除されていないかを判断する
+	 *
+	 * @param ordinal 文書番号
+	 * @return true/false
+	 */
+	public boolean isLive(final int ordinal) {
+		return !this.deleted.get(ordinal);
+	}
+
+	/**
+	 * 文書の形態素の総数を取得する
+	 *
+	 * @param ordinal 文書番号
+	 * @return 形態素の総数
+	 */
+	public int lengthAt(final int ordinal) {
+		return this.buffer.getInt(HEADER_SIZE + ordinal * DOC_ENTRY_SIZE + 16);
+	}
+
+	/**
+	 * 削除されていない文書数を取得する
+	 *
+	 * @return 文書数
+	 */
+	public int liveCount() {
+		return this.docCount - this.deleted.cardinality();
+	}
+
+	/**
+	 * 形態素IDが形態素辞書と一致するかを判断する
+	 *
+	 * @param termDictionary 形態素辞書
+	 * @return true/false
+	 */
+	public boolean matches(final @NotNull TermDictionary termDictionary) {
+		for (var t = 0; t < this.termCount; t++) {
+			final int entry = this.termTableOffset + t * TERM_ENTRY_SIZE;
+			final ByteBuffer input = this.buffer.duplicate().position(this.buffer.getInt(entry + 12));
+			final var name = new byte[readVarint(input)];
+			input.get(name);
+			if (termDictionary.idOf(new String(name, StandardCharsets.UTF_8)) != this.buffer.getInt(entry)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 賛美歌IDの文書番号を取得する
+	 *
+	 * @param id 賛美歌ID
+	 * @return 文書番号、含まれない場合は負の値
+	 */
+	public int ordinalOf(final long id) {
+		var low = 0;
+		var high = this.docCount - 1;
+		while (low <= high) {
+			final int middle = low + high >>> 1;
+			final long candidate = this.idAt(middle);
+			if (candidate < id) {
+				low = middle + 1;
+			} else if (candidate > id) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 削除状態を複製したセグメントを作成する（インデックスの読み込みロック取得済みであること）
+	 * <p>
+	 * ファイルは共有する。ロック解放後も複製時点の削除状態で文書を走査できる。
+	 *
+	 * @return LyricSegment
+	 */
+	public @NotNull LyricSegment snapshot() {
+		final var copy = new LyricSegment(this.file, this.buffer, this.generation, this.docCount, this.termCount);
+		copy.deleted.or(this.deleted);
+		return copy;
+	}
+
+	/**
+	 * 形態素表の位置を取得する
+	 *
+	 * @param termId 形態素ID
+	 * @return 位置、含まれない場合は負の値
+	 */
+	private int termIndexOf(final int termId) {
+		var low = 0;
+		var high = this.termCount - 1;
+		while (low <= high) {
+			final int middle = low + high >>> 1;
+			final int candidate = this.buffer.getInt(this.termTableOffset + middle * TERM_ENTRY_SIZE);
+			if (candidate < termId) {
+				low = middle + 1;
+			} else if (candidate > termId) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+}
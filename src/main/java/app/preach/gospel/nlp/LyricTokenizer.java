@@ -0,0 +1,42 @@
+package app.preach.gospel.nlp;
+
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 歌詞トークナイザー
+ * <p>
+ * ハングルのみのテキストを索引語へ分割する。実装はSpringのコンポーネントとして登録し、{@link TokenizerRegistry}が名前で選択する。
+ *
+ * @author ArkamaHozota
+ */
+public interface LyricTokenizer {
+
+	/**
+	 * トークナイザー名を取得する（{@code nlp.tokenizer}の設定値）
+	 *
+	 * @return 名前
+	 */
+	@NotNull
+	String name();
+
+	/**
+	 * 解析結果に影響する設定を含めた識別子を取得する（永続化したスナップショットの照合に使う）
+	 *
+	 * @return 識別子
+	 */
+	default @NotNull String signature() {
+		return this.name();
+	}
+
+	/**
+	 * 索引語へ分割する
+	 *
+	 * @param koreanText ハングルのみのテキスト
+	 * @return 索引語リスト（出現順・重複あり）
+	 */
+	@NotNull
+	List<String> tokenize(@NotNull String koreanText);
+
+}
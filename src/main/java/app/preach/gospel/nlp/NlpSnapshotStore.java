@@ -0,0 +1,224 @@
+package app.preach.gospel.nlp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+
+import app.preach.gospel.dto.DocKey;
+import app.preach.gospel.dto.RankedEntry;
+import app.preach.gospel.dto.RankedPage;
+import app.preach.gospel.utils.CoStringUtils;
+import app.preach.gospel.utils.LineNumber;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * NLPスナップショット
+ * <p>
+ * 形態素辞書とよく使われる検索結果をローカルファイルへ保存し、起動時に読み込む。解析済みの歌詞は{@link LyricSegment}として別に保存され、
+ * 復元した形態素辞書とIDが一致するセグメントのみ再利用される。トークナイザーの設定が変わった場合はスナップショットを使わない。
+ * 復元した検索結果は古いものとして扱い、最初の検索時にバックグラウンドで再計算する。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class NlpSnapshotStore {
+
+	/**
+	 * ファイル形式のバージョン
+	 */
+	private static final int FORMAT_VERSION = 2;
+
+	/**
+	 * ログ
+	 */
+	private static final Logger log = LogManager.getLogger(NlpSnapshotStore.class);
+
+	/**
+	 * ファイル形式の識別子
+	 */
+	private static final int MAGIC = 0x4E4C5053;
+
+	/**
+	 * 復元した検索結果に付けるコーパスバージョン（現在のバージョンと一致しない値）
+	 */
+	private static final String RESTORED_VERSION = CoStringUtils.EMPTY_STRING;
+
+	/**
+	 * 保存する検索結果の上限件数
+	 */
+	private final int maxResults;
+
+	/**
+	 * 検索結果の最大許容期間
+	 */
+	private final Duration maxStaleness;
+
+	/**
+	 * 保存先（空の場合は保存しない）
+	 */
+	private final String path;
+
+	/**
+	 * 検索結果キャッシュ
+	 */
+	private final Cache<DocKey, RankedEntry> resultCache;
+
+	/**
+	 * 形態素辞書
+	 */
+	private final TermDictionary termDictionary;
+
+	/**
+	 * トークナイザー
+	 */
+	private final LyricTokenizer tokenizer;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param path              保存先（空の場合は保存しない）
+	 * @param maxResults        保存する検索結果の上限件数
+	 * @param maxStaleness      検索結果の最大許容期間
+	 * @param resultCache       検索結果キャッシュ
+	 * @param termDictionary    形態素辞書
+	 * @param tokenizerRegistry トークナイザーレジストリ
+	 */
+	public NlpSnapshotStore(@Value("${nlp.snapshot.path:}") final String path,
+			@Value("${nlp.snapshot.max-results:1000}") final int maxResults,
+			@Value("${nlp.cache.results.max-staleness:PT3H}") final Duration maxStaleness,
+			@Qualifier("resultCache") final Cache<DocKey, RankedEntry> resultCache,
+			final TermDictionary termDictionary, final TokenizerRegistry tokenizerRegistry) {
+		this.path = path;
+		this.maxResults = maxResults;
+		this.maxStaleness = maxStaleness;
+		this.resultCache = resultCache;
+		this.termDictionary = termDictionary;
+		this.tokenizer = tokenizerRegistry.active();
+	}
+
+	/**
+	 * 起動時にスナップショットを読み込む（読み込めない場合は空の状態から始める）
+	 */
+	@PostConstruct
+	public void load() {
+		if (CoStringUtils.isEmpty(this.path)) {
+			return;
+		}
+		final var file = Path.of(this.path);
+		if (Files.notExists(file)) {
+			return;
+		}
+		final long start = System.nanoTime();
+		try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION
+					|| !this.tokenizer.signature().equals(input.readUTF())) {
+				log.info("NLPスナップショットの形式または解析設定が異なるため使用しません：" + file);
+				return;
+			}
+			final int termCount = input.readInt();
+			final var terms = new ArrayList<String>(termCount);
+			for (var i = 0; i < termCount; i++) {
+				terms.add(input.readUTF());
+			}
+			final int resultCount = input.readInt();
+			final var results = new ArrayList<Map.Entry<DocKey, RankedEntry>>(resultCount);
+			for (var i = 0; i < resultCount; i++) {
+				final var docKey = new DocKey(input.readUTF(), input.readInt());
+				final long rankedAt = input.readLong();
+				final var ids = new long[input.readInt()];
+				final var lineNumbers = new byte[ids.length];
+				for (var j = 0; j < ids.length; j++) {
+					ids[j] = input.readLong();
+					lineNumbers[j] = input.readByte();
+					if (lineNumbers[j] < 0 || lineNumbers[j] >= LineNumber.values().length) {
+						throw new IOException("ラインナンバーが範囲外です：" + lineNumbers[j]);
+					}
+				}
+				results.add(Map.entry(docKey,
+						new RankedEntry(new RankedPage(ids, lineNumbers), RESTORED_VERSION, rankedAt)));
+			}
+			if (!this.termDictionary.restore(terms)) {
+				log.warn("形態素辞書が既に使われているため、NLPスナップショットの形態素辞書は使用しません");
+			}
+			final long oldest = System.currentTimeMillis() - this.maxStaleness.toMillis();
+			results.forEach(entry -> {
+				if (entry.getValue().rankedAt() > oldest) {
+					this.resultCache.put(entry.getKey(), entry.getValue());
+				}
+			});
+			log.info("NLPスナップショットを読み込みました。形態素：" + termCount + "、検索結果：" + resultCount
+					+ "、所要時間：" + (System.nanoTime() - start) / 1_000_000L + "ms");
+		} catch (final IOException | RuntimeException e) {
+			log.warn("NLPスナップショットの読み込みに失敗しました：" + e.getMessage());
+		}
+	}
+
+	/**
+	 * スナップショットを保存する（一時ファイルへ書き出してから置き換える）
+	 */
+	@PreDestroy
+	@Scheduled(initialDelayString = "${nlp.snapshot.interval:PT30M}", fixedDelayString = "${nlp.snapshot.interval:PT30M}")
+	public void save() {
+		if (CoStringUtils.isEmpty(this.path)) {
+			return;
+		}
+		final long start = System.nanoTime();
+		final List<String> terms = this.termDictionary.snapshot();
+		final Map<DocKey, RankedEntry> results = this.resultCache.policy().eviction()
+				.map(eviction -> eviction.hottest(this.maxResults)).orElseGet(this.resultCache::asMap);
+		final var file = Path.of(this.path).toAbsolutePath();
+		try {
+			Files.createDirectories(file.getParent());
+			final Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+				output.writeInt(MAGIC);
+				output.writeInt(FORMAT_VERSION);
+				output.writeUTF(this.tokenizer.signature());
+				output.writeInt(terms.size());
+				for (final String term : terms) {
+					output.writeUTF(term);
+				}
+				output.writeInt(results.size());
+				for (final Map.Entry<DocKey, RankedEntry> entry : results.entrySet()) {
+					final RankedPage page = entry.getValue().page();
+					output.writeUTF(entry.getKey().keyword());
+					output.writeInt(entry.getKey().pageNum());
+					output.writeLong(entry.getValue().rankedAt());
+					output.writeInt(page.ids().length);
+					for (var i = 0; i < page.ids().length; i++) {
+						output.writeLong(page.ids()[i]);
+						output.writeByte(page.lineNumbers()[i]);
+					}
+				}
+			} catch (final IOException | RuntimeException e) {
+				Files.deleteIfExists(temporary);
+				throw e;
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			log.info("NLPスナップショットを保存しました。形態素：" + terms.size() + "、検索結果：" + results.size() + "、所要時間："
+					+ (System.nanoTime() - start) / 1_000_000L + "ms");
+		} catch (final IOException | RuntimeException e) {
+			log.warn("NLPスナップショットの保存に失敗しました：" + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package app.preach.gospel.nlp;
+
+import org.jetbrains.annotations.NotNull;
+
+import app.preach.gospel.utils.LineNumber;
+
+/**
+ * 歌詞検索のスコアリング方式
+ * <p>
+ * いずれのスコアも0以上1以下に揃え、方式毎の下限で{@link LineNumber}を判定する。
+ *
+ * @author ArkamaHozota
+ */
+public enum ScoringMode {
+
+	/**
+	 * ポスティングと文書長のみで計算するBM25（クエリの上限スコアで割る）
+	 */
+	BM25,
+
+	/**
+	 * TF-IDFベクトルのコサイン類似度
+	 */
+	COSINE;
+
+	/**
+	 * スコアによってラインナンバーを判定する
+	 *
+	 * @param score スコア
+	 * @return LineNumber
+	 */
+	public @NotNull LineNumber classify(final double score) {
+		return this == BM25 ? LineNumber.ofBm25(score) : LineNumber.of(score);
+	}
+
+}
@@ -0,0 +1,58 @@
+package app.preach.gospel.nlp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 同一キー処理の同時実行まとめ
+ * <p>
+ * 同じキーで同時に呼ばれた処理は最初の一回だけ実行し、後続の呼び出しはその結果（または例外）を共有する。
+ *
+ * @param <K> キー
+ * @param <V> 結果
+ * @author ArkamaHozota
+ */
+public final class SingleFlight<K, V> {
+
+	/**
+	 * 実行中の処理
+	 */
+	private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+	/**
+	 * 処理を実行する、または実行中の同一キーの処理の結果を待つ
+	 *
+	 * @param key    キー
+	 * @param loader 処理
+	 * @return 結果
+	 */
+	public V execute(final @NotNull K key, final @NotNull Supplier<V> loader) {
+		final var call = new CompletableFuture<V>();
+		final CompletableFuture<V> inFlight = this.calls.putIfAbsent(key, call);
+		if (inFlight != null) {
+			try {
+				return inFlight.join();
+			} catch (final CompletionException e) {
+				if (e.getCause() instanceof final RuntimeException cause) {
+					throw cause;
+				}
+				throw e;
+			}
+		}
+		try {
+			final V result = loader.get();
+			call.complete(result);
+			return result;
+		} catch (final RuntimeException | Error e) {
+			call.completeExceptionally(e);
+			throw e;
+		} finally {
+			this.calls.remove(key, call);
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package app.preach.gospel.nlp;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+
+/**
+ * 疎ベクトル（L2正規化済み）
+ * <p>
+ * 昇順の形態素IDと重みの組だけを保持するため、コサイン類似度は疎な内積で求められる。
+ *
+ * @author ArkamaHozota
+ */
+public final class SparseVector {
+
+	/**
+	 * 空ベクトル
+	 */
+	public static final SparseVector EMPTY = new SparseVector(new int[0], new float[0]);
+
+	/**
+	 * 重みマップからL2正規化済みの疎ベクトルを作成する
+	 *
+	 * @param raw 形態素ID → 重み
+	 * @return SparseVector
+	 */
+	public static @NotNull SparseVector of(final @NotNull Int2DoubleMap raw) {
+		if (raw.isEmpty()) {
+			return EMPTY;
+		}
+		final int[] termIds = raw.keySet().toIntArray();
+		Arrays.sort(termIds);
+		double sum = 0.00;
+		for (final int termId : termIds) {
+			final double weight = raw.get(termId);
+			sum += weight * weight;
+		}
+		if (sum == 0) {
+			return EMPTY;
+		}
+		final double norm = Math.sqrt(sum);
+		final var weights = new float[termIds.length];
+		for (var i = 0; i < termIds.length; i++) {
+			weights[i] = (float) (raw.get(termIds[i]) / norm);
+		}
+		return new SparseVector(termIds, weights);
+	}
+
+	/**
+	 * 形態素ID（昇順）
+	 */
+	private final int[] termIds;
+
+	/**
+	 * 正規化済みの重み
+	 */
+	private final float[] weights;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param termIds 形態素ID（昇順）
+	 * @param weights 正規化済みの重み
+	 */
+	@Contract(pure = true)
+	SparseVector(final int[] termIds, final float[] weights) {
+		this.termIds = termIds;
+		this.weights = weights;
+	}
+
+	/**
+	 * 内積（＝コサイン類似度）を計算する
+	 *
+	 * @param other 相手ベクトル
+	 * @return コサイン類似度
+	 */
+	public double dot(final @NotNull SparseVector other) {
+		final int[] a = this.termIds;
+		final int[] b = other.termIds;
+		double sum = 0.00;
+		int i = 0;
+		int j = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] == b[j]) {
+				sum += this.weights[i++] * other.weights[j++];
+			} else if (a[i] < b[j]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * 空かどうかを判断する
+	 *
+	 * @return true/false
+	 */
+	public boolean isEmpty() {
+		return this.termIds.length == 0;
+	}
+
+	/**
+	 * 非ゼロ要素数を取得する
+	 *
+	 * @return 要素数
+	 */
+	public int size() {
+		return this.termIds.length;
+	}
+
+	/**
+	 * 形態素IDを取得する
+	 *
+	 * @param index 位置
+	 * @return 形態素ID
+	 */
+	public int termIdAt(final int index) {
+		return this.termIds[index];
+	}
+
+	/**
+	 * 重みを取得する
+	 *
+	 * @param index 位置
+	 * @return 重み
+	 */
+	public float weightAt(final int index) {
+		return this.weights[index];
+	}
+
+}
@@ -0,0 +1,199 @@
+package app.preach.gospel.nlp;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Component;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * 形態素辞書
+ * <p>
+ * コーパス全体で共有し、形態素文字列を連番の整数IDへ対応付ける。IDは一度採番したら変わらず、文字列は辞書内のインスタンスへ集約（intern）する。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class TermDictionary {
+
+	/**
+	 * 未登録を表すID
+	 */
+	public static final int NO_TERM = -1;
+
+	/**
+	 * 形態素 → ID
+	 */
+	private final Object2IntOpenHashMap<String> ids = new Object2IntOpenHashMap<>();
+
+	/**
+	 * 読み書きロック
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * ID → 形態素
+	 */
+	private final ObjectArrayList<String> terms = new ObjectArrayList<>();
+
+	{
+		this.ids.defaultReturnValue(NO_TERM);
+	}
+
+	/**
+	 * 形態素リストをIDへ変換する（未登録の形態素は採番する）
+	 *
+	 * @param tokens 形態素リスト
+	 * @return 形態素ID配列（トークン順）
+	 */
+	public int @NotNull [] encode(final @NotNull List<String> tokens) {
+		final var result = new int[tokens.size()];
+		final var missing = new IntArrayList();
+		this.lock.readLock().lock();
+		try {
+			for (var i = 0; i < result.length; i++) {
+				result[i] = this.ids.getInt(tokens.get(i));
+				if (result[i] == NO_TERM) {
+					missing.add(i);
+				}
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		if (missing.isEmpty()) {
+			return result;
+		}
+		this.lock.writeLock().lock();
+		try {
+			for (var j = 0; j < missing.size(); j++) {
+				final int i = missing.getInt(j);
+				result[i] = this.register(tokens.get(i));
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * 形態素IDを取得する
+	 *
+	 * @param term 形態素
+	 * @return ID、未登録の場合は{@link #NO_TERM}
+	 */
+	public int idOf(final String term) {
+		this.lock.readLock().lock();
+		try {
+			return this.ids.getInt(term);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 形態素リストを登録済みのIDへ変換する（未登録の形態素は除外し、採番しない）
+	 *
+	 * @param tokens 形態素リスト
+	 * @return 形態素ID配列
+	 */
+	public int @NotNull [] lookup(final @NotNull List<String> tokens) {
+		final var result = new IntArrayList(tokens.size());
+		this.lock.readLock().lock();
+		try {
+			for (final String token : tokens) {
+				final int id = this.ids.getInt(token);
+				if (id != NO_TERM) {
+					result.add(id);
+				}
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		return result.toIntArray();
+	}
+
+	/**
+	 * 形態素を採番する（書き込みロック取得済みであること）
+	 *
+	 * @param term 形態素
+	 * @return ID
+	 */
+	private int register(final String term) {
+		final int existing = this.ids.getInt(term);
+		if (existing != NO_TERM) {
+			return existing;
+		}
+		final var interned = term.intern();
+		final int id = this.terms.size();
+		this.terms.add(interned);
+		this.ids.put(interned, id);
+		return id;
+	}
+
+	/**
+	 * 空の辞書へ永続化済みの形態素を採番順に復元する
+	 *
+	 * @param restored 形態素リスト（ID順）
+	 * @return 復元した場合はtrue、既に形態素が登録されている場合はfalse
+	 */
+	public boolean restore(final @NotNull List<String> restored) {
+		this.lock.writeLock().lock();
+		try {
+			if (!this.terms.isEmpty()) {
+				return false;
+			}
+			restored.forEach(this::register);
+			return this.terms.size() == restored.size();
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 登録済みの形態素数を取得する
+	 *
+	 * @return 形態素数
+	 */
+	public int size() {
+		this.lock.readLock().lock();
+		try {
+			return this.terms.size();
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 登録済みの形態素をID順に取得する
+	 *
+	 * @return 形態素リストのコピー
+	 */
+	public @NotNull List<String> snapshot() {
+		this.lock.readLock().lock();
+		try {
+			return List.copyOf(this.terms);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * IDから形態素を取得する
+	 *
+	 * @param id 形態素ID
+	 * @return 形態素
+	 */
+	public String termOf(final int id) {
+		this.lock.readLock().lock();
+		try {
+			return this.terms.get(id);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+}
@@ -0,0 +1,61 @@
+package app.preach.gospel.nlp;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * トークナイザーレジストリ
+ * <p>
+ * 登録された{@link LyricTokenizer}から{@code nlp.tokenizer}で指定されたものを選び、索引とクエリの両方に使う。
+ * 形態素IDは同じトークナイザーで作った索引語同士でしか対応しないため、索引と異なるトークナイザーをクエリに使うことはできない。
+ *
+ * @author ArkamaHozota
+ */
+@Component
+public class TokenizerRegistry {
+
+	/**
+	 * ログ
+	 */
+	private static final Logger log = LogManager.getLogger(TokenizerRegistry.class);
+
+	/**
+	 * 使用中のトークナイザー
+	 */
+	private final LyricTokenizer active;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param tokenizers 登録されたトークナイザー
+	 * @param name       使用するトークナイザー名
+	 */
+	public TokenizerRegistry(final @NotNull List<LyricTokenizer> tokenizers,
+			@Value("${nlp.tokenizer:" + KomoranTokenizer.NAME + "}") final String name) {
+		final Map<String, LyricTokenizer> byName = new LinkedHashMap<>();
+		tokenizers.forEach(t -> byName.put(t.name(), t));
+		final LyricTokenizer selected = byName.get(name.strip().toUpperCase());
+		if (selected == null) {
+			throw new IllegalArgumentException("未登録のトークナイザーです：" + name + "、登録済み：" + byName.keySet());
+		}
+		this.active = selected;
+		log.info("トークナイザー：" + selected.name());
+	}
+
+	/**
+	 * 使用中のトークナイザーを取得する
+	 *
+	 * @return LyricTokenizer
+	 */
+	public @NotNull LyricTokenizer active() {
+		return this.active;
+	}
+
+}
@@ -0,0 +1,188 @@
+package app.preach.gospel.nlp;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 上位K件コレクター
+ * <p>
+ * (スコア, 文書番号)の組を容量Kの二分ヒープで保持し、全件ソートせずに上位K件だけを選ぶ。
+ * スコアが同じ場合は文書番号の小さい方を上位とする。
+ *
+ * @author ArkamaHozota
+ */
+public final class TopKCollector {
+
+	/**
+	 * 容量
+	 */
+	private final int capacity;
+
+	/**
+	 * 文書番号（ヒープ）
+	 */
+	private final int[] docs;
+
+	/**
+	 * スコア（ヒープ）
+	 */
+	private final double[] scores;
+
+	/**
+	 * 保持件数
+	 */
+	private int size;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param capacity 容量
+	 */
+	public TopKCollector(final int capacity) {
+		this.capacity = Math.max(capacity, 0);
+		this.docs = new int[this.capacity];
+		this.scores = new double[this.capacity];
+	}
+
+	/**
+	 * 候補を追加する
+	 *
+	 * @param doc   文書番号
+	 * @param score スコア
+	 * @return 上位K件に入った場合はtrue
+	 */
+	public boolean collect(final int doc, final double score) {
+		if (this.capacity == 0) {
+			return false;
+		}
+		if (this.size < this.capacity) {
+			this.docs[this.size] = doc;
+			this.scores[this.size] = score;
+			this.siftUp(this.size++);
+			return true;
+		}
+		if (!this.isBetter(score, doc, this.scores[0], this.docs[0])) {
+			return false;
+		}
+		this.docs[0] = doc;
+		this.scores[0] = score;
+		this.siftDown(0, this.size);
+		return true;
+	}
+
+	/**
+	 * 上位K件を取り出す（スコア降順）
+	 * <p>
+	 * 取り出し後、コレクターは空になる。
+	 *
+	 * @return 文書番号配列
+	 */
+	public int @NotNull [] drain() {
+		final var result = new int[this.size];
+		for (int end = this.size - 1; end >= 0; end--) {
+			result[end] = this.docs[0];
+			this.swap(0, end);
+			this.siftDown(0, end);
+		}
+		this.size = 0;
+		return result;
+	}
+
+	/**
+	 * 指定範囲の順位の文書番号を取り出す
+	 *
+	 * @param offset 開始順位（0始まり）
+	 * @param limit  件数
+	 * @return 文書番号配列
+	 */
+	public int @NotNull [] drain(final int offset, final int limit) {
+		final int[] all = this.drain();
+		final int from = Math.min(Math.max(offset, 0), all.length);
+		final int to = Math.min(from + Math.max(limit, 0), all.length);
+		final var result = new int[to - from];
+		System.arraycopy(all, from, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * 容量まで埋まっているかを判断する
+	 *
+	 * @return true/false
+	 */
+	public boolean isFull() {
+		return this.size == this.capacity;
+	}
+
+	/**
+	 * 左が右より上位かを判断する
+	 */
+	private boolean isBetter(final double scoreA, final int docA, final double scoreB, final int docB) {
+		return scoreA > scoreB || (scoreA == scoreB && docA < docB);
+	}
+
+	/**
+	 * ヒープを下方向に整える
+	 */
+	private void siftDown(int i, final int end) {
+		while (true) {
+			final int left = 2 * i + 1;
+			if (left >= end) {
+				return;
+			}
+			final int right = left + 1;
+			int worst = left;
+			if (right < end && this.isBetter(this.scores[left], this.docs[left], this.scores[right], this.docs[right])) {
+				worst = right;
+			}
+			if (!this.isBetter(this.scores[i], this.docs[i], this.scores[worst], this.docs[worst])) {
+				return;
+			}
+			this.swap(i, worst);
+			i = worst;
+		}
+	}
+
+	/**
+	 * ヒープを上方向に整える
+	 */
+	private void siftUp(int i) {
+		while (i > 0) {
+			final int parent = (i - 1) / 2;
+			if (!this.isBetter(this.scores[parent], this.docs[parent], this.scores[i], this.docs[i])) {
+				return;
+			}
+			this.swap(i, parent);
+			i = parent;
+		}
+	}
+
+	/**
+	 * 保持件数を取得する
+	 *
+	 * @return 件数
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * 要素を入れ替える
+	 */
+	private void swap(final int a, final int b) {
+		final int doc = this.docs[a];
+		this.docs[a] = this.docs[b];
+		this.docs[b] = doc;
+		final double score = this.scores[a];
+		this.scores[a] = this.scores[b];
+		this.scores[b] = score;
+	}
+
+	/**
+	 * 上位K件に入るための最低スコアを取得する
+	 *
+	 * @return 容量未満の場合は負の無限大
+	 */
+	public double threshold() {
+		return this.isFull() && this.size > 0 ? this.scores[0] : Double.NEGATIVE_INFINITY;
+	}
+
+}
@@ -0,0 +1,508 @@
+package app.preach.gospel.nlp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+import app.preach.gospel.utils.LineNumber;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+/**
+ * 文書ベクトルストア
+ * <p>
+ * 正規化済みのTF-IDFベクトルと近傍リストをヒープ外のダイレクトバッファに固定レイアウトで置く。構築後は変更せず、IDFモデルと一緒に差し替える。
+ * 読み出しは二分探索とオフセット計算のみで、オブジェクトを生成しない。バッファは次の順に並ぶ。
+ * <ul>
+ * <li>賛美歌ID（昇順）：文書数 × long</li>
+ * <li>ノルム：文書数 × float</li>
+ * <li>要素の開始位置：(文書数 + 1) × int</li>
+ * <li>要素：形態素ID（int）、正規化済みの重み（float）</li>
+ * <li>近傍リスト：文書数 × 近傍数 × (文書番号（int、空きは-1）、コサイン類似度（float）)</li>
+ * </ul>
+ * 近傍リストは関連する賛美歌のグラフとして使うため、{@link LineNumber#NAPLES}の下限に満たない類似度の文書は含めない。
+ * 直前のストアがある場合、変更された文書と形態素を共有しない文書の近傍リストは計算し直さずに引き継ぐ。
+ * 検索時の枝刈りのため、形態素毎の正規化済みの重みの最大値をヒープに持つ。
+ *
+ * @author ArkamaHozota
+ */
+public final class VectorStore {
+
+	/**
+	 * 空のストア
+	 */
+	public static final VectorStore EMPTY = new VectorStore(ByteBuffer.allocateDirect(Integer.BYTES), 0, 0, 0,
+			new Int2FloatOpenHashMap());
+
+	/**
+	 * 近傍リストに含める類似度の下限
+	 */
+	private static final double MIN_SIMILARITY = LineNumber.NAPLES.getThreshold();
+
+	/**
+	 * 削除されていない文書から構築する
+	 *
+	 * @param segments   セグメントリスト
+	 * @param idf        形態素ID → IDF
+	 * @param neighbors  文書毎に保持する近傍数（0の場合は近傍リストを作らない）
+	 * @param previous   直前のストア（nullの場合は近傍リストを全て計算する）
+	 * @param changedIds 直前のストアの構築後に追加、変更、削除された賛美歌ID
+	 * @return VectorStore
+	 */
+	public static @NotNull VectorStore build(final @NotNull List<LyricSegment> segments,
+			final @NotNull Int2DoubleMap idf, final int neighbors, final VectorStore previous,
+			final @NotNull LongSet changedIds) {
+		final var ids = new LongArrayList();
+		final var locations = new LongArrayList();
+		for (var s = 0; s < segments.size(); s++) {
+			final LyricSegment segment = segments.get(s);
+			for (var ordinal = 0; ordinal < segment.docCount(); ordinal++) {
+				if (segment.isLive(ordinal)) {
+					ids.add(segment.idAt(ordinal));
+					locations.add((long) s << 32 | ordinal);
+				}
+			}
+		}
+		final int size = ids.size();
+		if (size == 0) {
+			return EMPTY;
+		}
+		// 賛美歌ID昇順の並びへ揃える
+		final var order = new int[size];
+		Arrays.setAll(order, i -> i);
+		IntArrays.quickSort(order, (a, b) -> Long.compare(ids.getLong(a), ids.getLong(b)));
+		final var termIds = new IntArrayList();
+		final var weights = new FloatArrayList();
+		final var starts = new int[size + 1];
+		final var norms = new float[size];
+		for (var i = 0; i < size; i++) {
+			final long location = locations.getLong(order[i]);
+			final LyricSegment segment = segments.get((int) (location >>> 32));
+			final int from = termIds.size();
+			starts[i] = from;
+			segment.forEachTerm((int) location, (termId, frequency) -> {
+				termIds.add(termId);
+				weights.add((float) (frequency * idf.get(termId)));
+			});
+			double sum = 0.00;
+			for (var k = from; k < termIds.size(); k++) {
+				sum += (double) weights.getFloat(k) * weights.getFloat(k);
+			}
+			norms[i] = (float) Math.sqrt(sum);
+			for (var k = from; k < termIds.size() && sum > 0; k++) {
+				weights.set(k, (float) (weights.getFloat(k) / norms[i]));
+			}
+		}
+		starts[size] = termIds.size();
+		final var maxWeights = new Int2FloatOpenHashMap();
+		for (var k = 0; k < termIds.size(); k++) {
+			if (weights.getFloat(k) > maxWeights.get(termIds.getInt(k))) {
+				maxWeights.put(termIds.getInt(k), weights.getFloat(k));
+			}
+		}
+		final int width = Math.max(neighbors, 0);
+		final long bytes = (long) size * Long.BYTES + (long) size * Float.BYTES + (size + 1L) * Integer.BYTES
+				+ termIds.size() * 8L + (long) size * width * 8L;
+		if (bytes > Integer.MAX_VALUE) {
+			throw new IllegalStateException("文書ベクトルストアの容量を超えました：" + bytes);
+		}
+		final ByteBuffer buffer = ByteBuffer.allocateDirect((int) bytes);
+		for (var i = 0; i < size; i++) {
+			buffer.putLong(ids.getLong(order[i]));
+		}
+		for (final float norm : norms) {
+			buffer.putFloat(norm);
+		}
+		for (final int start : starts) {
+			buffer.putInt(start);
+		}
+		for (var k = 0; k < termIds.size(); k++) {
+			buffer.putInt(termIds.getInt(k));
+			buffer.putFloat(weights.getFloat(k));
+		}
+		final var store = new VectorStore(buffer, size, termIds.size(), width, maxWeights);
+		if (width > 0) {
+			store.fillNeighbors(previous, changedIds);
+		}
+		return store;
+	}
+
+	/**
+	 * ダイレクトバッファ
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * 要素の位置
+	 */
+	private final int entriesOffset;
+
+	/**
+	 * 形態素ID → 正規化済みの重みの最大値
+	 */
+	private final Int2FloatOpenHashMap maxWeights;
+
+	/**
+	 * 近傍リストの位置
+	 */
+	private final int neighborsOffset;
+
+	/**
+	 * 文書毎の近傍数
+	 */
+	private final int neighborWidth;
+
+	/**
+	 * ノルムの位置
+	 */
+	private final int normsOffset;
+
+	/**
+	 * 文書数
+	 */
+	private final int size;
+
+	/**
+	 * 要素の開始位置の位置
+	 */
+	private final int startsOffset;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param buffer        ダイレクトバッファ
+	 * @param size          文書数
+	 * @param entryCount    要素数
+	 * @param neighborWidth 文書毎の近傍数
+	 * @param maxWeights    形態素ID → 正規化済みの重みの最大値
+	 */
+	private VectorStore(final ByteBuffer buffer, final int size, final int entryCount, final int neighborWidth,
+			final Int2FloatOpenHashMap maxWeights) {
+		this.buffer = buffer;
+		this.maxWeights = maxWeights;
+		this.size = size;
+		this.neighborWidth = neighborWidth;
+		this.normsOffset = size * Long.BYTES;
+		this.startsOffset = this.normsOffset + size * Float.BYTES;
+		this.entriesOffset = this.startsOffset + (size + 1) * Integer.BYTES;
+		this.neighborsOffset = this.entriesOffset + entryCount * 8;
+	}
+
+	/**
+	 * 正規化済みのクエリベクトルとの内積（＝コサイン類似度）を計算する
+	 *
+	 * @param ordinal 文書番号
+	 * @param query   クエリベクトル
+	 * @return コサイン類似度
+	 */
+	public double dot(final int ordinal, final @NotNull SparseVector query) {
+		int i = this.startOf(ordinal);
+		final int end = this.endOf(ordinal);
+		int j = 0;
+		double sum = 0.00;
+		while (i < end && j < query.size()) {
+			final int termId = this.termIdAt(i);
+			final int other = query.termIdAt(j);
+			if (termId == other) {
+				sum += this.weightAt(i) * query.weightAt(j);
+				i++;
+				j++;
+			} else if (termId < other) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * 直前のストアの近傍リストを引き継ぐ
+	 *
+	 * @return 近傍が現在のストアに含まれない場合はfalse
+	 */
+	private boolean copyNeighbors(final @NotNull VectorStore previous, final int ordinal) {
+		final int from = previous.ordinalOf(this.idAt(ordinal));
+		final int base = this.neighborsOffset + ordinal * this.neighborWidth * 8;
+		for (var n = 0; n < this.neighborWidth; n++) {
+			final int neighbor = previous.neighborAt(from, n);
+			final int remapped = neighbor < 0 ? -1 : this.ordinalOf(previous.idAt(neighbor));
+			if (neighbor >= 0 && remapped < 0) {
+				return false;
+			}
+			this.buffer.putInt(base + n * 8, remapped);
+			this.buffer.putFloat(base + n * 8 + Integer.BYTES, previous.neighborSimilarity(from, n));
+		}
+		return true;
+	}
+
+	/**
+	 * 文書の要素の終了位置を取得する
+	 */
+	private int endOf(final int ordinal) {
+		return this.buffer.getInt(this.startsOffset + (ordinal + 1) * Integer.BYTES);
+	}
+
+	/**
+	 * 要素の数を取得する
+	 */
+	private int entryCount() {
+		return this.endOf(this.size - 1);
+	}
+
+	/**
+	 * 近傍リストを計算して書き込む（構築時のみ）
+	 * <p>
+	 * 一時的な転置リストを作り、文書毎に共有する形態素を持つ文書だけの内積を累積する。変更の影響を受けない文書は直前のストアから引き継ぐ。
+	 * 引き継いだ類似度は直前のIDFによる値のままとなる。
+	 *
+	 * @param previous   直前のストア（nullの場合は全て計算する）
+	 * @param changedIds 直前のストアの構築後に追加、変更、削除された賛美歌ID
+	 */
+	private void fillNeighbors(final VectorStore previous, final @NotNull LongSet changedIds) {
+		final BitSet stale = this.staleRows(previous, changedIds);
+		final var postings = new Int2ObjectOpenHashMap<IntArrayList>();
+		for (var ordinal = 0; ordinal < this.size; ordinal++) {
+			final int end = this.endOf(ordinal);
+			for (int k = this.startOf(ordinal); k < end; k++) {
+				postings.computeIfAbsent(this.termIdAt(k), t -> new IntArrayList()).add(k);
+			}
+		}
+		final var owners = new int[this.entryCount()];
+		for (var ordinal = 0; ordinal < this.size; ordinal++) {
+			Arrays.fill(owners, this.startOf(ordinal), this.endOf(ordinal), ordinal);
+		}
+		final var similarities = new double[this.size];
+		final var touched = new IntArrayList();
+		final var collector = new TopKCollector(this.neighborWidth);
+		for (var ordinal = 0; ordinal < this.size; ordinal++) {
+			if (!stale.get(ordinal) && this.copyNeighbors(previous, ordinal)) {
+				continue;
+			}
+			final int end = this.endOf(ordinal);
+			for (int k = this.startOf(ordinal); k < end; k++) {
+				final float weight = this.weightAt(k);
+				final IntArrayList posting = postings.get(this.termIdAt(k));
+				for (var p = 0; p < posting.size(); p++) {
+					final int entry = posting.getInt(p);
+					final int other = owners[entry];
+					if (other == ordinal) {
+						continue;
+					}
+					if (similarities[other] == 0) {
+						touched.add(other);
+					}
+					similarities[other] += weight * this.weightAt(entry);
+				}
+			}
+			for (var t = 0; t < touched.size(); t++) {
+				final int other = touched.getInt(t);
+				if (similarities[other] >= MIN_SIMILARITY) {
+					collector.collect(other, similarities[other]);
+				}
+			}
+			final int[] nearest = collector.drain();
+			final int base = this.neighborsOffset + ordinal * this.neighborWidth * 8;
+			for (var n = 0; n < this.neighborWidth; n++) {
+				this.buffer.putInt(base + n * 8, n < nearest.length ? nearest[n] : -1);
+				this.buffer.putFloat(base + n * 8 + Integer.BYTES,
+						n < nearest.length ? (float) similarities[nearest[n]] : 0.0F);
+			}
+			for (var t = 0; t < touched.size(); t++) {
+				similarities[touched.getInt(t)] = 0;
+			}
+			touched.clear();
+		}
+	}
+
+	/**
+	 * 賛美歌IDを取得する
+	 *
+	 * @param ordinal 文書番号
+	 * @return 賛美歌ID
+	 */
+	public long idAt(final int ordinal) {
+		return this.buffer.getLong(ordinal * Long.BYTES);
+	}
+
+	/**
+	 * 形態素の正規化済みの重みの最大値を取得する
+	 *
+	 * @param termId 形態素ID
+	 * @return 最大値、どの文書にも含まれない場合は0
+	 */
+	public float maxWeightOf(final int termId) {
+		return this.maxWeights.get(termId);
+	}
+
+	/**
+	 * 近傍の文書番号を取得する
+	 *
+	 * @param ordinal 文書番号
+	 * @param rank    近傍の順位（0始まり）
+	 * @return 文書番号、近傍が足りない場合は-1
+	 */
+	public int neighborAt(final int ordinal, final int rank) {
+		return this.buffer.getInt(this.neighborsOffset + (ordinal * this.neighborWidth + rank) * 8);
+	}
+
+	/**
+	 * 近傍のコサイン類似度を取得する
+	 *
+	 * @param ordinal 文書番号
+	 * @param rank    近傍の順位（0始まり）
+	 * @return コサイン類似度
+	 */
+	public float neighborSimilarity(final int ordinal, final int rank) {
+		return this.buffer.getFloat(this.neighborsOffset + (ordinal * this.neighborWidth + rank) * 8 + Integer.BYTES);
+	}
+
+	/**
+	 * 文書毎の近傍数を取得する
+	 *
+	 * @return 近傍数
+	 */
+	public int neighborWidth() {
+		return this.neighborWidth;
+	}
+
+	/**
+	 * TF-IDFベクトルのノルムを取得する
+	 *
+	 * @param ordinal 文書番号
+	 * @return ノルム
+	 */
+	public double normAt(final int ordinal) {
+		return this.buffer.getFloat(this.normsOffset + ordinal * Float.BYTES);
+	}
+
+	/**
+	 * 賛美歌IDの文書番号を取得する
+	 *
+	 * @param id 賛美歌ID
+	 * @return 文書番号、含まれない場合は負の値
+	 */
+	public int ordinalOf(final long id) {
+		var low = 0;
+		var high = this.size - 1;
+		while (low <= high) {
+			final int middle = low + high >>> 1;
+			final long candidate = this.idAt(middle);
+			if (candidate < id) {
+				low = middle + 1;
+			} else if (candidate > id) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 文書数を取得する
+	 *
+	 * @return 文書数
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * 近傍リストを計算し直す文書を求める
+	 * <p>
+	 * 変更された文書、直前のストアに含まれない文書、変更前後の変更された文書と形態素を共有する文書が対象となる。
+	 */
+	private @NotNull BitSet staleRows(final VectorStore previous, final @NotNull LongSet changedIds) {
+		final var stale = new BitSet(this.size);
+		if (previous == null || previous.neighborWidth != this.neighborWidth) {
+			stale.set(0, this.size);
+			return stale;
+		}
+		final var affectedTerms = new IntOpenHashSet();
+		for (final LongIterator iterator = changedIds.iterator(); iterator.hasNext();) {
+			final long id = iterator.nextLong();
+			final int ordinal = this.ordinalOf(id);
+			if (ordinal >= 0) {
+				stale.set(ordinal);
+				for (int k = this.startOf(ordinal); k < this.endOf(ordinal); k++) {
+					affectedTerms.add(this.termIdAt(k));
+				}
+			}
+			final int before = previous.ordinalOf(id);
+			if (before >= 0) {
+				for (int k = previous.startOf(before); k < previous.endOf(before); k++) {
+					affectedTerms.add(previous.termIdAt(k));
+				}
+			}
+		}
+		for (var ordinal = 0; ordinal < this.size; ordinal++) {
+			if (stale.get(ordinal) || previous.ordinalOf(this.idAt(ordinal)) < 0) {
+				stale.set(ordinal);
+				continue;
+			}
+			final int end = this.endOf(ordinal);
+			for (int k = this.startOf(ordinal); k < end; k++) {
+				if (affectedTerms.contains(this.termIdAt(k))) {
+					stale.set(ordinal);
+					break;
+				}
+			}
+		}
+		return stale;
+	}
+
+	/**
+	 * 文書の要素の開始位置を取得する
+	 */
+	private int startOf(final int ordinal) {
+		return this.buffer.getInt(this.startsOffset + ordinal * Integer.BYTES);
+	}
+
+	/**
+	 * 要素の形態素IDを取得する
+	 */
+	private int termIdAt(final int entry) {
+		return this.buffer.getInt(this.entriesOffset + entry * 8);
+	}
+
+	/**
+	 * 文書の正規化済みのベクトルをヒープへ複製する
+	 *
+	 * @param ordinal 文書番号
+	 * @return SparseVector
+	 */
+	public @NotNull SparseVector vectorAt(final int ordinal) {
+		final int start = this.startOf(ordinal);
+		final int end = this.endOf(ordinal);
+		if (start == end) {
+			return SparseVector.EMPTY;
+		}
+		final var termIds = new int[end - start];
+		final var weights = new float[end - start];
+		for (int i = start; i < end; i++) {
+			termIds[i - start] = this.termIdAt(i);
+			weights[i - start] = this.weightAt(i);
+		}
+		return new SparseVector(termIds, weights);
+	}
+
+	/**
+	 * 要素の重みを取得する
+	 */
+	private float weightAt(final int entry) {
+		return this.buffer.getFloat(this.entriesOffset + entry * 8 + Integer.BYTES);
+	}
+
+}
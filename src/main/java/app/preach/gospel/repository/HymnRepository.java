@@ -40,10 +40,10 @@ public interface HymnRepository extends ListCrudRepository<Hymn, Long> {
 	@Query("SELECT COUNT(1) FROM HYMNS HM WHERE HM.VISIBLE_FLG = 'true' AND HM.NAME_KR = :nameKr AND HM.ID <> :id")
 	int countByVisibleFlgTrueAndNameKrAndIdNot(@Param("nameKr") String nameKr, @Param("id") Long id);
 
-	// 賛美歌を論理削除（VISIBLE_FLG = 'false'）
+	// 有効な賛美歌を論理削除（VISIBLE_FLG = 'false'）、更新件数を返す
 	@Modifying
-	@Query("UPDATE HYMNS SET VISIBLE_FLG = 'false' WHERE ID = :id")
-	void deleteLogically(@Param("id") Long id);
+	@Query("UPDATE HYMNS SET VISIBLE_FLG = 'false' WHERE ID = :id AND VISIBLE_FLG = 'true'")
+	int deleteLogically(@Param("id") Long id);
 
 	// 有効な賛美歌をNAME_KRでLIKE検索、ID昇順
 	@Query("SELECT HM.ID, HM.NAME_JP, HM.NAME_KR, HM.LINK, HM.UPDATED_TIME, HM.UPDATED_USER, HM.LYRIC, HM.VISIBLE_FLG, HM.CLASSICAL"
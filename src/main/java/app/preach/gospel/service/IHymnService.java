@@ -59,6 +59,14 @@ public interface IHymnService {
 	 */
 	CoResult<List<HymnDto>, DataAccessException> getHymnsInfoByRandom(String keyword);
 
+	/**
+	 * 歌詞の似ている賛美歌を取得する
+	 *
+	 * @param id ID
+	 * @return CoResult<List<HymnDto>, DataAccessException>
+	 */
+	CoResult<List<HymnDto>, DataAccessException> getRelatedHymns(Long id);
+
 	/**
 	 * 賛美歌のレコード数を取得する
 	 *
@@ -4,19 +4,18 @@ import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.imageio.ImageIO;
 
@@ -31,24 +30,35 @@ import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.tika.Tika;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.CollectionUtils;
 
 import com.github.benmanes.caffeine.cache.Cache;
 
 import app.preach.gospel.common.ProjectConstants;
 import app.preach.gospel.dto.DocKey;
-import app.preach.gospel.dto.IdfKey;
-import app.preach.gospel.dto.TokKey;
-import app.preach.gospel.dto.VecKey;
+import app.preach.gospel.dto.RankedEntry;
+import app.preach.gospel.dto.RankedPage;
 import app.preach.gospel.mapper.HymnMapper;
 import app.preach.gospel.model.Hymn;
 import app.preach.gospel.model.HymnWork;
 import app.preach.gospel.model.Student;
+import app.preach.gospel.nlp.AnalyzedDocument;
+import app.preach.gospel.nlp.CorpusVersion;
+import app.preach.gospel.nlp.HymnCatalog;
+import app.preach.gospel.nlp.LyricAnalyzer;
+import app.preach.gospel.nlp.LyricIndexWarmer;
+import app.preach.gospel.nlp.LyricInvertedIndex;
+import app.preach.gospel.nlp.ScoringMode;
+import app.preach.gospel.nlp.SingleFlight;
+import app.preach.gospel.nlp.TopKCollector;
 import app.preach.gospel.pojo.HymnDto;
 import app.preach.gospel.repository.HymnRepository;
 import app.preach.gospel.repository.HymnWorkRepository;
@@ -60,11 +70,11 @@ import app.preach.gospel.utils.CoStringUtils;
 import app.preach.gospel.utils.LineNumber;
 import app.preach.gospel.utils.Pagination;
 import app.preach.gospel.utils.SnowflakeUtils;
-import it.unimi.dsi.fastutil.objects.Object2DoubleMap.Entry;
-import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
-import kr.co.shineware.nlp.komoran.constant.DEFAULT_MODEL;
-import kr.co.shineware.nlp.komoran.core.Komoran;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 
 /**
  * 賛美歌サービス実装クラス - Spring Data JDBC 移行版(部分1)
@@ -81,41 +91,57 @@ public class HymnServiceImpl implements IHymnService {
 	private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
 
 	/**
-	 * KOMORAN-API
+	 * ログ
 	 */
-	private static final Komoran KOMORAN = new Komoran(DEFAULT_MODEL.FULL);
+	private static final Logger log = LogManager.getLogger(HymnServiceImpl.class);
 
 	/**
-	 * Korean Language
+	 * ランドム選択
 	 */
-	private static final String KR = "Korean";
+	private static final Random RANDOM = new Random();
 
 	/**
-	 * ログ
+	 * 怪しいキーワードリスト
 	 */
-	private static final Logger log = LogManager.getLogger(HymnServiceImpl.class);
+	private static final String[] STRANGE_ARRAY = { "insert", "delete", "update", "create", "drop", "#", "$", "%", "(",
+			")", "\"", "\'", "@", ":", "select" };
 
 	/**
-	 * ランドム選択
+	 * ラインナンバーの昇順（上位順）
 	 */
-	private static final Random RANDOM = new Random();
+	private static final LineNumber[] TIERS = Arrays.stream(LineNumber.values())
+			.sorted(Comparator.comparing(LineNumber::getLineNo)).toArray(LineNumber[]::new);
 
 	/**
-	 * ダイジェストメソッド
+	 * トランザクションのコミット後に処理を実行する
+	 *
+	 * @param action 処理
 	 */
-	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
-		try {
-			return MessageDigest.getInstance("SHA-256");
-		} catch (final NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
+	private static void afterCommit(final Runnable action) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			action.run();
+			return;
 		}
-	});
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+			@Override
+			public void afterCommit() {
+				action.run();
+			}
+		});
+	}
 
 	/**
-	 * 怪しいキーワードリスト
+	 * 類似度によってラインナンバーを判定する
+	 *
+	 * @param scoring    スコアリング方式
+	 * @param similarity 類似度
+	 * @param lineNumber 現在のラインナンバー
+	 * @return LineNumber
 	 */
-	private static final String[] STRANGE_ARRAY = { "insert", "delete", "update", "create", "drop", "#", "$", "%", "(",
-			")", "\"", "\'", "@", ":", "select" };
+	private static LineNumber classify(final ScoringMode scoring, final double similarity,
+			final LineNumber lineNumber) {
+		return lineNumber != LineNumber.SNOWY ? lineNumber : scoring.classify(similarity);
+	}
 
 	/**
 	 * イメージからPDFへ変換する
@@ -157,28 +183,6 @@ public class HymnServiceImpl implements IHymnService {
 		}
 	}
 
-	/**
-	 * コサイン類似度を計算する
-	 *
-	 * @param vectorA ベクターA
-	 * @param vectorB ベクターB
-	 * @return コサイン類似度
-	 */
-	private static double cosineSimilarity(final double @NotNull [] vectorA, final double[] vectorB) {
-		double dotProduct = 0.00;
-		double normA = 0.00;
-		double normB = 0.00;
-		for (var i = 0; i < Math.min(vectorA.length, vectorB.length); i++) {
-			dotProduct += vectorA[i] * vectorB[i];
-			normA += Math.pow(vectorA[i], 2);
-			normB += Math.pow(vectorB[i], 2);
-		}
-		if ((normA == 0) || (normB == 0)) {
-			return 0;
-		}
-		return dotProduct / (Math.sqrt(normA) * Math.sqrt(normB));
-	}
-
 	/**
 	 * 通常検索条件を取得する
 	 *
@@ -190,6 +194,51 @@ public class HymnServiceImpl implements IHymnService {
 				: CoStringUtils.HANKAKU_PERCENTSIGN.concat(keyword).concat(CoStringUtils.HANKAKU_PERCENTSIGN);
 	}
 
+	/**
+	 * 名称一致の賛美歌IDを集める
+	 *
+	 * @param matches 名称一致の賛美歌リスト
+	 * @return LongSet
+	 */
+	private static @NotNull LongSet matchedIds(final @NotNull List<Hymn> matches) {
+		final var ids = new LongOpenHashSet(matches.size());
+		matches.forEach(h -> ids.add(h.id().longValue()));
+		return ids;
+	}
+
+	/**
+	 * 名称一致の賛美歌を先頭に、残りを元の並び順で続けた一覧から1ページ分の順位を切り出す
+	 *
+	 * @param elements   賛美歌リスト
+	 * @param matchedIds 名称一致の賛美歌ID
+	 * @param offset     開始位置
+	 * @param margrave   終了位置
+	 * @return RankedPage
+	 */
+	private static @NotNull RankedPage titleMatches(final @NotNull List<HymnDto> elements,
+			final @NotNull LongSet matchedIds, final int offset, final int margrave) {
+		final var ordered = new LongArrayList(elements.size());
+		elements.forEach(h -> {
+			if (matchedIds.contains(h.id().longValue())) {
+				ordered.add(h.id().longValue());
+			}
+		});
+		elements.forEach(h -> {
+			if (!matchedIds.contains(h.id().longValue())) {
+				ordered.add(h.id().longValue());
+			}
+		});
+		final int from = Math.min(offset, ordered.size());
+		final int to = Math.max(from, Math.min(margrave, ordered.size()));
+		final var ids = new long[to - from];
+		final var lineNumbers = new byte[ids.length];
+		for (var i = 0; i < ids.length; i++) {
+			ids[i] = ordered.getLong(from + i);
+			lineNumbers[i] = (byte) (matchedIds.contains(ids[i]) ? LineNumber.CADMIUM : LineNumber.SNOWY).ordinal();
+		}
+		return new RankedPage(ids, lineNumbers);
+	}
+
 	/**
 	 * セリフの全角スペースを削除する
 	 *
@@ -201,31 +250,69 @@ public class HymnServiceImpl implements IHymnService {
 		return serif.replace(zenkakuSpace, CoStringUtils.EMPTY_STRING).trim();
 	}
 
+	// コーパスバージョン
+	private final CorpusVersion corpusVersion;
+	// バックグラウンド処理用エグゼキューター
+	private final Executor executor;
+	// 賛美歌カタログ
+	private final HymnCatalog hymnCatalog;
 	// Entity2DTO Mapper
 	private final HymnMapper hymnMapper;
 	// jOOQの依存関係を排除し、Spring Data JDBCリポとMapStructマッパーを注入
 	private final HymnRepository hymnRepository;
 	private final HymnWorkRepository hymnWorkRepository;
-	@Qualifier("nlpCache")
-	private final Cache<Object, Object> nlpCache;
+	// 歌詞解析器
+	private final LyricAnalyzer lyricAnalyzer;
+	// 歌詞転置インデックスのウォームアップ
+	private final LyricIndexWarmer lyricIndexWarmer;
+	// 歌詞転置インデックス
+	private final LyricInvertedIndex lyricInvertedIndex;
+	// 検索結果の再計算を始めるまでの期間
+	private final Duration refreshAfter;
+	// バックグラウンドで再計算中の検索条件
+	private final Set<DocKey> refreshing = ConcurrentHashMap.newKeySet();
+	// 検索結果キャッシュ
+	@Qualifier("resultCache")
+	private final Cache<DocKey, RankedEntry> resultCache;
+	// 検索の同時実行まとめ
+	private final SingleFlight<DocKey, RankedEntry> searchFlight = new SingleFlight<>();
 
 	private final StudentRepository studentRepository;
 
 	/**
 	 * コンストラクタ
 	 *
+	 * @param resultCache
+	 * @param corpusVersion
+	 * @param executor
+	 * @param hymnCatalog
 	 * @param hymnMapper
 	 * @param hymnRepository
 	 * @param hymnWorkRepository
+	 * @param lyricAnalyzer
+	 * @param lyricIndexWarmer
+	 * @param lyricInvertedIndex
+	 * @param refreshAfter
 	 * @param studentRepository
 	 */
-	protected HymnServiceImpl(final Cache<Object, Object> nlpCache, final HymnMapper hymnMapper,
-			final HymnRepository hymnRepository, final HymnWorkRepository hymnWorkRepository,
+	protected HymnServiceImpl(final Cache<DocKey, RankedEntry> resultCache, final CorpusVersion corpusVersion,
+			@Qualifier("nlpExecutor") final Executor executor, final HymnCatalog hymnCatalog,
+			final HymnMapper hymnMapper, final HymnRepository hymnRepository,
+			final HymnWorkRepository hymnWorkRepository, final LyricAnalyzer lyricAnalyzer,
+			final LyricIndexWarmer lyricIndexWarmer, final LyricInvertedIndex lyricInvertedIndex,
+			@Value("${nlp.cache.results.refresh-after:PT10M}") final Duration refreshAfter,
 			final StudentRepository studentRepository) {
-		this.nlpCache = nlpCache;
+		this.resultCache = resultCache;
+		this.corpusVersion = corpusVersion;
+		this.executor = executor;
+		this.hymnCatalog = hymnCatalog;
 		this.hymnMapper = hymnMapper;
 		this.hymnRepository = hymnRepository;
 		this.hymnWorkRepository = hymnWorkRepository;
+		this.lyricAnalyzer = lyricAnalyzer;
+		this.lyricIndexWarmer = lyricIndexWarmer;
+		this.lyricInvertedIndex = lyricInvertedIndex;
+		this.refreshAfter = refreshAfter;
 		this.studentRepository = studentRepository;
 	}
 
@@ -261,89 +348,72 @@ public class HymnServiceImpl implements IHymnService {
 		}
 	}
 
-	private double[] computeTfIdfVector(final String lang, final String hymnVersion, final String text,
-			final Object2DoubleOpenHashMap<String> idf) {
-		final var key = new VecKey(lang, hymnVersion, this.hash(text));
-		final var cached = (double[]) this.nlpCache.getIfPresent(key);
-		if (cached != null) {
-			return cached;
-		}
-		final var tokens = this.tokenize(lang, "KOMORAN", text);
-		final var tf = new Object2IntOpenHashMap<String>();
-		tokens.forEach(t -> tf.merge(t, 1, Integer::sum));
-		final var vec = new double[idf.size()];
-		final Object2IntOpenHashMap<String> termIndex = this.indexOf(idf.keySet());
-		tf.object2IntEntrySet().fastForEach(en -> {
-			final var term = en.getKey();
-			final int cnt = en.getIntValue();
-			if (termIndex.containsKey(term)) {
-				vec[termIndex.getInt(term)] = cnt * idf.getOrDefault(term, 0.0);
-			}
-		});
-		this.nlpCache.put(key, vec);
-		return vec;
-	}
-
 	/**
 	 * 最も似てる賛美歌を取得する
+	 * <p>
+	 * 全件ソートは行わず、指定範囲の順位に入る賛美歌だけを上位K件選択で求め、IDとラインナンバーの配列で返す。
+	 * クエリが一つの場合、類似度は上位K件に入り得る賛美歌と名称一致の賛美歌についてのみ計算する。
+	 * 複数の場合はポスティングを一度だけ走査してクエリ毎の類似度を求め、設定された方式で統合する。
 	 *
-	 * @param target   目標テキスト
-	 * @param elements 賛美歌リスト
-	 * @return List<HymnsRecord>
+	 * @param queries    解析済みクエリリスト
+	 * @param elements   賛美歌リスト
+	 * @param matchedIds 名称一致の賛美歌ID
+	 * @param offset     開始順位（0始まり）
+	 * @param limit      件数
+	 * @return RankedPage
 	 */
-	private List<HymnDto> findTopMatches(final String[] target, final List<HymnDto> elements) {
-		final String corpusVersion = this.getCorpusVersion();
-		final var hymnsStream = elements.stream().map(e -> this.tokenize(KR, "KOMORAN", e.lyric()));
-		final Object2DoubleOpenHashMap<String> idf = this.getIdf(target, hymnsStream);
-		var targetVector = new double[0];
-		if (target.length == 1) {
-			targetVector = this.computeTfIdfVector(KR, corpusVersion, target[0], idf);
-		} else {
-			for (final var vn : target) {
-				final var tmp = targetVector;
-				final double[] computeTfIdfVector = this.computeTfIdfVector(KR, corpusVersion, vn, idf);
-				targetVector = new double[tmp.length + computeTfIdfVector.length];
-				System.arraycopy(tmp, 0, targetVector, 0, tmp.length);
-				System.arraycopy(computeTfIdfVector, 0, targetVector, tmp.length, computeTfIdfVector.length);
-			}
+	private @NotNull RankedPage findTopMatches(final List<AnalyzedDocument> queries, final List<HymnDto> elements,
+			final LongSet matchedIds, final int offset, final int limit) {
+		// ページ番号由来の順位は賛美歌の件数までに抑える
+		final int wanted = (int) Math.min((long) offset + limit, elements.size());
+		if (offset >= wanted) {
+			return new RankedPage(new long[0], new byte[0]);
 		}
-		final var elementVectors = elements.stream()
-				.map(item -> this.computeTfIdfVector(KR, corpusVersion, item.lyric(), idf)).toList();
-		final var maxHeap = new ArrayList<Object2DoubleOpenHashMap.Entry<HymnDto>>();
+		final var scope = new LongOpenHashSet(elements.size());
+		elements.forEach(item -> scope.add(item.id().longValue()));
+		// 転置インデックスでクエリ形態素のポスティングのみ走査し、単一クエリの場合は上位K件に入らない賛美歌を打ち切る
+		final Long2DoubleOpenHashMap similarities = queries.size() == 1
+				? this.lyricInvertedIndex.topScores(queries.get(0), wanted,
+						id -> scope.contains(id) && !matchedIds.contains(id), matchedIds)
+				: this.lyricInvertedIndex.fuse(queries);
+		final ScoringMode scoring = this.lyricInvertedIndex.scoring();
+		// ラインナンバー毎に上位K件を選ぶ
+		final var collectors = new TopKCollector[LineNumber.values().length];
+		// 類似度ゼロかつ名称不一致の賛美歌は元の並び順のまま後ろに続く
+		final var tail = new IntArrayList();
 		for (var i = 0; i < elements.size(); i++) {
-			final double similarity = cosineSimilarity(targetVector, elementVectors.get(i));
-			maxHeap.add(new Object2DoubleOpenHashMap.BasicEntry<>(elements.get(i), similarity));
-		}
-		return maxHeap.stream().sorted(Comparator.comparing(Entry<HymnDto>::getDoubleValue).reversed()).map(item -> {
-			final var similarity = item.getDoubleValue();
-			log.warn("類似程度：" + similarity);
-			final var hymnDto = item.getKey();
-			if (similarity >= 0.33 && hymnDto.lineNumber() == LineNumber.SNOWY) {
-				return new HymnDto(hymnDto.id(), hymnDto.nameJp(), hymnDto.nameKr(), hymnDto.lyric(), hymnDto.link(),
-						hymnDto.score(), hymnDto.updatedUser(), hymnDto.updatedTime(), LineNumber.CADMIUM);
-			}
-			if (similarity >= 0.21 && hymnDto.lineNumber() == LineNumber.SNOWY) {
-				return new HymnDto(hymnDto.id(), hymnDto.nameJp(), hymnDto.nameKr(), hymnDto.lyric(), hymnDto.link(),
-						hymnDto.score(), hymnDto.updatedUser(), hymnDto.updatedTime(), LineNumber.BURGUNDY);
+			final long id = elements.get(i).id().longValue();
+			final double similarity = similarities.get(id);
+			final LineNumber base = matchedIds.contains(id) ? LineNumber.CADMIUM : LineNumber.SNOWY;
+			if (similarity > 0 || base != LineNumber.SNOWY) {
+				final int tier = classify(scoring, similarity, base).ordinal();
+				if (collectors[tier] == null) {
+					collectors[tier] = new TopKCollector(wanted);
+				}
+				collectors[tier].collect(i, similarity);
+			} else if (tail.size() < wanted) {
+				tail.add(i);
 			}
-			if (similarity >= 0.07 && hymnDto.lineNumber() == LineNumber.SNOWY) {
-				return new HymnDto(hymnDto.id(), hymnDto.nameJp(), hymnDto.nameKr(), hymnDto.lyric(), hymnDto.link(),
-						hymnDto.score(), hymnDto.updatedUser(), hymnDto.updatedTime(), LineNumber.NAPLES);
+		}
+		final var ranked = new IntArrayList(wanted);
+		for (final LineNumber tier : TIERS) {
+			final TopKCollector collector = collectors[tier.ordinal()];
+			if (collector != null && ranked.size() < wanted) {
+				ranked.addElements(ranked.size(), collector.drain(0, wanted - ranked.size()));
 			}
-			return hymnDto;
-		}).toList();
-	}
-
-	@Transactional(readOnly = true)
-	protected String getCorpusVersion() {
-		// 1. MAX(updated_time) をリポジトリ経由で取得
-		final LocalDateTime maxUpdatedAt = this.hymnRepository.findMaxUpdatedTime();
-		// 2. null の場合は現在時刻を代替
-		if (maxUpdatedAt == null) {
-			return LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
 		}
-		// 3. ISO 文字列に変換
-		return maxUpdatedAt.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+		for (var i = 0; i < tail.size() && ranked.size() < wanted; i++) {
+			ranked.add(tail.getInt(i));
+		}
+		final int from = Math.min(offset, ranked.size());
+		final var ids = new long[ranked.size() - from];
+		final var lineNumbers = new byte[ids.length];
+		for (var i = 0; i < ids.length; i++) {
+			ids[i] = elements.get(ranked.getInt(from + i)).id().longValue();
+			final LineNumber base = matchedIds.contains(ids[i]) ? LineNumber.CADMIUM : LineNumber.SNOWY;
+			lineNumbers[i] = (byte) classify(scoring, similarities.get(ids[i]), base).ordinal();
+		}
+		return new RankedPage(ids, lineNumbers);
 	}
 
 	@Transactional(readOnly = true)
@@ -372,72 +442,27 @@ public class HymnServiceImpl implements IHymnService {
 		}
 	}
 
-	@Transactional(readOnly = true)
+	// キャッシュヒット時にコネクションを取得しないよう、トランザクションは張らない
 	@Override
 	public CoResult<Pagination<HymnDto>, DataAccessException> getHymnsInfoByPagination(final Integer pageNum,
 			final String keyword) {
 		try {
-			// 総件数の取得
-			final long totalRecords = this.hymnRepository.countByVisibleFlgTrue();
-			final int offset = (pageNum - 1) * ProjectConstants.DEFAULT_PAGE_SIZE;
-			final int margrave = (int) ((offset + ProjectConstants.DEFAULT_PAGE_SIZE) > totalRecords ? totalRecords
-					: offset + ProjectConstants.DEFAULT_PAGE_SIZE);
-			final var docKey = new DocKey(keyword, this.getCorpusVersion(), totalRecords);
-			@SuppressWarnings("unchecked")
-			final var nlpedHymnDtos = (List<HymnDto>) this.nlpCache.getIfPresent(docKey);
-			if (nlpedHymnDtos != null) {
-				final var subList = nlpedHymnDtos.subList(offset, margrave);
-				final var pagination = Pagination.of(subList, totalRecords, pageNum,
-						ProjectConstants.DEFAULT_PAGE_SIZE);
-				return CoResult.ok(pagination);
-			}
-			// 有効な讃美歌の一覧を取得し、MapStruct で DTO へ一括変換
-			final List<HymnDto> hymnDtos = this.hymnRepository.findByVisibleFlgTrueOrderByIdAsc().stream()
-					.map(h -> this.hymnMapper.toDto2(h, LineNumber.SNOWY))
-					.collect(Collectors.toCollection(ArrayList::new)); // 後のremoveIf等の破壊的操作に備えて可変リストにする
-			if (CoStringUtils.isEmpty(keyword)) {
-				final var pagination = Pagination.of(hymnDtos.subList(offset, margrave), totalRecords, pageNum,
-						ProjectConstants.DEFAULT_PAGE_SIZE);
-				this.nlpCache.put(docKey, hymnDtos);
-				return CoResult.ok(pagination);
+			final String normalizedKeyword = CoStringUtils.isEmpty(keyword) ? CoStringUtils.EMPTY_STRING
+					: keyword.strip();
+			// 総件数の取得（プロセス内カウンター）
+			final long totalRecords = this.corpusVersion.totalRecords();
+			final var docKey = new DocKey(normalizedKeyword, pageNum);
+			RankedEntry ranked = this.resultCache.getIfPresent(docKey);
+			if (ranked == null) {
+				// 同一キーの同時検索は一つの計算を共有する
+				ranked = this.searchFlight.execute(docKey, () -> this.rankPage(docKey));
+			} else if (!ranked.corpusVersion().equals(this.corpusVersion.current())
+					|| System.currentTimeMillis() - ranked.rankedAt() >= this.refreshAfter.toMillis()) {
+				// 古い結果をそのまま返し、バックグラウンドで再計算する
+				this.refreshInBackground(docKey);
 			}
-			for (final String starngement : STRANGE_ARRAY) {
-				if (keyword.toLowerCase().contains(starngement) || keyword.length() >= 100) {
-					log.warn("怪しいキーワード： " + keyword);
-					final var pagination = Pagination.of(
-							hymnDtos.subList(offset, offset + ProjectConstants.DEFAULT_PAGE_SIZE), totalRecords,
-							pageNum, ProjectConstants.DEFAULT_PAGE_SIZE);
-					this.nlpCache.put(docKey, hymnDtos);
-					return CoResult.ok(pagination);
-				}
-			}
-			// NAME_KRのライク検索に該当する一覧を取得し、MapStructでDTO化
-			final List<HymnDto> hymnDtos2 = this.hymnRepository.findActiveByNameKrLike(getHymnSpecification(keyword))
-					.stream().map(h -> this.hymnMapper.toDto2(h, LineNumber.CADMIUM)).toList();
-			if (CollectionUtils.isEmpty(hymnDtos2)) {
-				final var splits = keyword.split("&");
-				final List<HymnDto> topMatches = this.findTopMatches(splits, hymnDtos);
-				final var sortedHymnDtos = topMatches.stream()
-						.sorted(Comparator.comparingInt(item -> item.lineNumber().getLineNo())).toList();
-				final var pagination = Pagination.of(sortedHymnDtos.subList(offset, margrave), totalRecords, pageNum,
-						ProjectConstants.DEFAULT_PAGE_SIZE);
-				this.nlpCache.put(docKey, sortedHymnDtos);
-				return CoResult.ok(pagination);
-			}
-			final var list = hymnDtos2.stream().map(HymnDto::lyric).toList();
-			final var targets = new String[list.size()];
-			for (var i = 0; i < targets.length; i++) {
-				targets[i] = list.get(i);
-			}
-			final var ids = hymnDtos2.stream().map(HymnDto::id).toList();
-			hymnDtos.removeIf(a -> ids.contains(a.id()));
-			hymnDtos.addAll(hymnDtos2);
-			final List<HymnDto> topMatches = this.findTopMatches(targets, hymnDtos);
-			final var sortedHymnDtos = topMatches.stream()
-					.sorted(Comparator.comparingInt(item -> item.lineNumber().getLineNo())).toList();
-			final var pagination = Pagination.of(sortedHymnDtos.subList(offset, margrave), totalRecords, pageNum,
-					ProjectConstants.DEFAULT_PAGE_SIZE);
-			this.nlpCache.put(docKey, sortedHymnDtos);
+			final var pagination = Pagination.of(this.hymnCatalog.current().hydrate(ranked.page()), totalRecords,
+					pageNum, ProjectConstants.DEFAULT_PAGE_SIZE);
 			return CoResult.ok(pagination);
 		} catch (final DataAccessException e) {
 			return CoResult.err(e);
@@ -450,44 +475,40 @@ public class HymnServiceImpl implements IHymnService {
 	@Override
 	public CoResult<List<HymnDto>, DataAccessException> getHymnsInfoByRandom(final String keyword) {
 		try {
+			final HymnCatalog.Snapshot catalog = this.hymnCatalog.current();
 			for (final String starngement : STRANGE_ARRAY) {
 				if (keyword.toLowerCase().contains(starngement) || keyword.length() >= 100) {
-					// 件数制限付き取得の代わりに、リポジトリから条件2（classical=false）のリストを取得して上限処理
-					final List<HymnDto> hymnDtos = this.hymnRepository.findByVisibleFlgTrueOrderByIdAsc().stream()
-							.limit(ProjectConstants.DEFAULT_PAGE_SIZE)
-							.map(h -> this.hymnMapper.toDto2(h, LineNumber.SNOWY)).toList();
+					// 件数制限付き取得の代わりに、カタログの先頭から上限処理
+					final List<HymnDto> hymnDtos = catalog.hymns().stream().limit(ProjectConstants.DEFAULT_PAGE_SIZE)
+							.toList();
 					log.warn("怪しいキーワード： " + keyword);
 					return CoResult.ok(hymnDtos);
 				}
 			}
-			// 全レコードのDTO変換リスト（可変）
-			final List<HymnDto> totalRecords = this.hymnRepository.findByVisibleFlgTrueAndClassicalFalseOrderByIdAsc()
-					.stream().map(h -> this.hymnMapper.toDto2(h, LineNumber.SNOWY))
-					.collect(Collectors.toCollection(ArrayList::new));
+			// クラシック以外の全レコード（カタログのDTOを共有する可変リスト）
+			final List<HymnDto> totalRecords = catalog.nonClassical();
 			if (CoStringUtils.isEmpty(keyword)) {
 				final List<HymnDto> hymnDtos = this.randomFiveLoop2(totalRecords);
 				return CoResult.ok(hymnDtos);
 			}
-			final List<HymnDto> hymnDtos2 = this.hymnRepository
-					.findActiveByNameKrLikeAndClassicalFalse(getHymnSpecification(keyword)).stream()
-					.map(h -> this.hymnMapper.toDto2(h, LineNumber.CADMIUM)).toList();
-			if (CollectionUtils.isEmpty(hymnDtos2)) {
-				final String[] splits = keyword.split("&");
-				final List<HymnDto> topMatches = this.findTopMatches(splits, totalRecords);
-				final List<HymnDto> randomFiveLoop = this.randomFiveLoop(topMatches.subList(0, 10), totalRecords);
+			final List<Hymn> matches = this.hymnRepository
+					.findActiveByNameKrLikeAndClassicalFalse(getHymnSpecification(keyword));
+			if (!this.lyricIndexWarmer.isReady()) {
+				// 形態素解析の準備が整うまでは名称一致のみで選ぶ
+				this.lyricIndexWarmer.warmUpAsync();
+				final List<HymnDto> hymnDtos2 = matches.stream()
+						.map(h -> this.hymnMapper.toDto2(h, LineNumber.CADMIUM)).toList();
+				final List<HymnDto> randomFiveLoop = CollectionUtils.isEmpty(hymnDtos2)
+						? this.randomFiveLoop2(totalRecords)
+						: this.randomFiveLoop(hymnDtos2, totalRecords);
 				return CoResult.ok(randomFiveLoop.stream()
 						.sorted(Comparator.comparingInt(item -> item.lineNumber().getLineNo())).toList());
 			}
-			final var list = hymnDtos2.stream().map(HymnDto::lyric).toList();
-			final var targets = new String[list.size()];
-			for (var i = 0; i < targets.length; i++) {
-				targets[i] = list.get(i);
-			}
-			final var ids = hymnDtos2.stream().map(HymnDto::id).toList();
-			totalRecords.removeIf(a -> ids.contains(a.id()));
-			totalRecords.addAll(hymnDtos2);
-			final List<HymnDto> topMatches = this.findTopMatches(targets, totalRecords);
-			final List<HymnDto> randomFiveLoop = this.randomFiveLoop(topMatches.subList(0, 10), totalRecords);
+			final List<AnalyzedDocument> queries = matches.isEmpty() ? this.keywordQueries(keyword)
+					: this.lyricQueries(matches);
+			final List<HymnDto> topMatches = catalog
+					.hydrate(this.findTopMatches(queries, totalRecords, matchedIds(matches), 0, 10));
+			final List<HymnDto> randomFiveLoop = this.randomFiveLoop(topMatches, totalRecords);
 			return CoResult.ok(randomFiveLoop.stream()
 					.sorted(Comparator.comparingInt(item -> item.lineNumber().getLineNo())).toList());
 		} catch (final DataAccessException e) {
@@ -497,26 +518,24 @@ public class HymnServiceImpl implements IHymnService {
 		}
 	}
 
-	private Object2DoubleOpenHashMap<String> getIdf(final String[] corpusVersion, final Stream<List<String>> allDocs) {
-		final var key = new IdfKey(corpusVersion);
-		@SuppressWarnings("unchecked")
-		final var cached = (Object2DoubleOpenHashMap<String>) this.nlpCache.getIfPresent(key);
-		if (cached != null) {
-			return cached;
-		}
-		final var df = new Object2IntOpenHashMap<String>();
-		final var list = allDocs.toList();
-		for (final var docs : list) {
-			docs.stream().distinct().forEach(term -> df.merge(term, 1, Integer::sum));
+	// 近傍リストは歌詞の変更時にバックグラウンドで更新済みのため、ここでは類似度を計算しない
+	@Override
+	public CoResult<List<HymnDto>, DataAccessException> getRelatedHymns(final Long id) {
+		try {
+			final HymnCatalog.Snapshot catalog = this.hymnCatalog.current();
+			if (!catalog.byId().containsKey(id.longValue())) {
+				return CoResult.err(new DataRetrievalFailureException(ProjectConstants.MESSAGE_HYMN_NOT_FOUND));
+			}
+			if (!this.lyricIndexWarmer.isReady()) {
+				this.lyricIndexWarmer.warmUpAsync();
+				return CoResult.ok(List.of());
+			}
+			return CoResult.ok(catalog.hydrate(this.lyricInvertedIndex.related(id)));
+		} catch (final DataAccessException e) {
+			return CoResult.err(e);
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
 		}
-		final long totalDocs = list.size();
-		final var res = new Object2DoubleOpenHashMap<String>();
-		df.object2IntEntrySet().fastForEach(en -> {
-			final double an = Math.log((totalDocs + 1.0) / (en.getIntValue() + 1.0)) + 1.0;
-			res.put(en.getKey(), an);
-		});
-		this.nlpCache.put(key, res);
-		return res;
 	}
 
 	@Transactional(readOnly = true)
@@ -530,41 +549,16 @@ public class HymnServiceImpl implements IHymnService {
 		}
 	}
 
-	/**
-	 * ハッシュ化する
-	 *
-	 * @param text テキスト
-	 * @return String
-	 */
-	private String hash(final String text) {
-		final var b = SHA256.get().digest(text.getBytes(CoStringUtils.CHARSET_UTF8));
-		final var sb = new StringBuilder();
-		for (final byte x : b) {
-			sb.append(String.format("%02x", x));
-		}
-		return sb.toString();
-	}
-
-	/**
-	 * インデクスを取得する
-	 *
-	 * @param terms リスト
-	 * @return Object2IntOpenHashMap<String>
-	 */
-	private Object2IntOpenHashMap<String> indexOf(final Collection<String> terms) {
-		final var map = new Object2IntOpenHashMap<String>(terms.size() * 2);
-		int i = 0;
-		for (final var t : terms) {
-			map.put(t, i++);
-		}
-		return map;
-	}
-
 	@Transactional
 	@Override
 	public CoResult<String, DataAccessException> infoDeletion(final Long id) {
 		try {
-			this.hymnRepository.deleteLogically(id);
+			if (this.hymnRepository.deleteLogically(id) > 0) {
+				afterCommit(() -> {
+					this.lyricIndexWarmer.afterWarmUp(() -> this.lyricInvertedIndex.remove(id));
+					this.corpusVersion.bump(-1, null);
+				});
+			}
 			return CoResult.ok(ProjectConstants.MESSAGE_STRING_DELETED);
 		} catch (final DataAccessException e) {
 			return CoResult.err(e);
@@ -585,6 +579,11 @@ public class HymnServiceImpl implements IHymnService {
 			// 2. HYMNS_WORKテーブルへインサート
 			final var nextWorkSequenceId = this.hymnWorkRepository.countAllRecords() + 1;
 			this.hymnWorkRepository.insertOne(Long.valueOf(nextWorkSequenceId), newHymnId, null);
+			afterCommit(() -> {
+				this.lyricIndexWarmer.afterWarmUp(
+						() -> this.lyricInvertedIndex.upsert(this.lyricAnalyzer.analyze(newHymnId, trimmedSerif)));
+				this.corpusVersion.bump(1, updateTime);
+			});
 			// 3. 最大ページ数の算定
 			final long totalRecords = this.hymnRepository.countByVisibleFlgTrue();
 			final int discernLargestPage = CoStringUtils.discernLargestPage(totalRecords);
@@ -632,6 +631,13 @@ public class HymnServiceImpl implements IHymnService {
 //			final var finalUpdatedWork = new HymnWork(existingWork.id(), existingWork.workId(), existingWork.score());
 //			this.hymnWorkRepository.update(finalUpdatedWork);
 			this.hymnRepository.save(finalUpdatedHymn);
+			afterCommit(() -> {
+				if (CoStringUtils.isNotEqual(existingHymn.lyric(), trimmedSerif)) {
+					this.lyricIndexWarmer.afterWarmUp(
+							() -> this.lyricInvertedIndex.upsert(this.lyricAnalyzer.analyze(targetId, trimmedSerif)));
+				}
+				this.corpusVersion.bump(0, updateTime);
+			});
 			return CoResult.ok(ProjectConstants.MESSAGE_STRING_UPDATED);
 		} catch (final DataAccessException e) {
 			return CoResult.err(e);
@@ -640,6 +646,32 @@ public class HymnServiceImpl implements IHymnService {
 		}
 	}
 
+	/**
+	 * キーワードからクエリを作成する（&区切りの各キーワードを別々のクエリとする）
+	 *
+	 * @param keyword キーワード
+	 * @return 形態素を含むクエリのリスト
+	 */
+	private @NotNull List<AnalyzedDocument> keywordQueries(final @NotNull String keyword) {
+		return Arrays.stream(keyword.split("&")).map(this.lyricAnalyzer::analyzeQuery)
+				.filter(query -> !query.isEmpty()).toList();
+	}
+
+	/**
+	 * 名称一致の賛美歌の歌詞からクエリを作成する（賛美歌毎に別々のクエリとする）
+	 * <p>
+	 * 索引済みの賛美歌は解析結果を再利用し、再解析しない。
+	 *
+	 * @param hymns 名称一致の賛美歌リスト
+	 * @return 形態素を含むクエリのリスト
+	 */
+	private @NotNull List<AnalyzedDocument> lyricQueries(final @NotNull List<Hymn> hymns) {
+		return hymns.stream().map(h -> {
+			final AnalyzedDocument indexed = this.lyricInvertedIndex.documentOf(h.id());
+			return indexed != null ? indexed : this.lyricAnalyzer.analyzeQuery(h.lyric());
+		}).filter(query -> !query.isEmpty()).toList();
+	}
+
 	/**
 	 * ランドム選択ループ1
 	 *
@@ -679,6 +711,55 @@ public class HymnServiceImpl implements IHymnService {
 		return this.randomFiveLoop(concernList2, hymnsRecords);
 	}
 
+	/**
+	 * 1ページ分の順位を計算する（歌詞インデックスの構築前の暫定結果はキャッシュしない）
+	 *
+	 * @param docKey 検索条件
+	 * @return RankedEntry
+	 */
+	private @NotNull RankedEntry rankPage(final @NotNull DocKey docKey) {
+		final String version = this.corpusVersion.current();
+		final long totalRecords = this.corpusVersion.totalRecords();
+		// 桁あふれしないよう、開始位置は総件数までに抑える
+		final int offset = (int) Math.min((docKey.pageNum() - 1L) * ProjectConstants.DEFAULT_PAGE_SIZE,
+				Math.min(totalRecords, Integer.MAX_VALUE));
+		final int margrave = (int) Math.min((long) offset + ProjectConstants.DEFAULT_PAGE_SIZE,
+				Math.min(totalRecords, Integer.MAX_VALUE));
+		final boolean lyricReady = this.lyricIndexWarmer.isReady();
+		final var ranked = new RankedEntry(this.searchHymns(docKey.keyword(), offset, margrave, lyricReady), version,
+				System.currentTimeMillis());
+		if (lyricReady) {
+			this.resultCache.put(docKey, ranked);
+		}
+		return ranked;
+	}
+
+	/**
+	 * 検索結果をバックグラウンドで再計算する（同じ検索条件の再計算が実行中の場合は何もしない）
+	 * <p>
+	 * 歌詞インデックスの構築前は再計算結果をキャッシュしないため、古い結果のまま返し再計算しない。
+	 *
+	 * @param docKey 検索条件
+	 */
+	private void refreshInBackground(final @NotNull DocKey docKey) {
+		if (!this.lyricIndexWarmer.isReady() || !this.refreshing.add(docKey)) {
+			return;
+		}
+		try {
+			this.executor.execute(() -> {
+				try {
+					this.searchFlight.execute(docKey, () -> this.rankPage(docKey));
+				} catch (final RuntimeException e) {
+					log.warn("検索結果の再計算に失敗しました：" + e.getMessage());
+				} finally {
+					this.refreshing.remove(docKey);
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			this.refreshing.remove(docKey);
+		}
+	}
+
 	@Transactional
 	@Override
 	public CoResult<String, DataAccessException> scoreStorage(final @NotNull byte[] file, final Long id) {
@@ -711,28 +792,39 @@ public class HymnServiceImpl implements IHymnService {
 		}
 	}
 
-	// 1) 形態素解析キャッシュ
-	private List<String> tokenize(final String lang, final String tokenizer, final String text) {
-		final var regex = "\\p{IsHangul}";
-		final var builder = new StringBuilder();
-		for (final var ch : text.toCharArray()) {
-			if (Pattern.matches(regex, String.valueOf(ch))) {
-				builder.append(ch);
-			}
+	/**
+	 * キーワードによって賛美歌の1ページ分の順位を検索する
+	 *
+	 * @param keyword    キーワード
+	 * @param offset     開始位置
+	 * @param margrave   終了位置
+	 * @param lyricReady 歌詞転置インデックスが構築済みかどうか
+	 * @return RankedPage
+	 */
+	private @NotNull RankedPage searchHymns(final String keyword, final int offset, final int margrave,
+			final boolean lyricReady) {
+		// 有効な讃美歌の一覧はカタログで共有する
+		final HymnCatalog.Snapshot catalog = this.hymnCatalog.current();
+		if (CoStringUtils.isEmpty(keyword)) {
+			return catalog.slice(offset, margrave);
 		}
-		final var koreanText = builder.toString();
-		if (CoStringUtils.isEmpty(koreanText)) {
-			return new ArrayList<>();
+		for (final String starngement : STRANGE_ARRAY) {
+			if (keyword.toLowerCase().contains(starngement) || keyword.length() >= 100) {
+				log.warn("怪しいキーワード： " + keyword);
+				return catalog.slice(offset, margrave);
+			}
 		}
-		final var key = new TokKey(lang, tokenizer, this.hash(koreanText));
-		@SuppressWarnings("unchecked")
-		final var cached = (List<String>) this.nlpCache.getIfPresent(key);
-		if (cached != null) {
-			return cached;
+		// NAME_KRのライク検索に該当する一覧を取得する
+		final List<Hymn> matches = this.hymnRepository.findActiveByNameKrLike(getHymnSpecification(keyword));
+		if (!lyricReady) {
+			// 形態素解析の準備が整うまでは名称一致のみで並べる
+			this.lyricIndexWarmer.warmUpAsync();
+			return titleMatches(catalog.hymns(), matchedIds(matches), offset, margrave);
 		}
-		final var tokens = KOMORAN.analyze(koreanText).getTokenList().stream().map(t -> t.getMorph()).toList();
-		this.nlpCache.put(key, tokens);
-		return tokens;
+		final List<AnalyzedDocument> queries = matches.isEmpty() ? this.keywordQueries(keyword)
+				: this.lyricQueries(matches);
+		return this.findTopMatches(queries, catalog.hymns(), matchedIds(matches), offset,
+				ProjectConstants.DEFAULT_PAGE_SIZE);
 	}
 
-}
\ No newline at end of file
+}
@@ -8,30 +8,88 @@ package app.preach.gospel.utils;
  */
 public enum LineNumber {
 
-	BURGUNDY(2),
+	BURGUNDY(2, 0.21, 0.25),
 
-	CADMIUM(1),
+	CADMIUM(1, 0.33, 0.40),
 
-	NAPLES(3),
+	NAPLES(3, 0.07, 0.10),
 
-	SNOWY(5);
+	SNOWY(5, 0.00, 0.00);
+
+	/**
+	 * 類似度によってラインナンバーを判定する
+	 *
+	 * @param similarity コサイン類似度
+	 * @return 下限を満たす最も高いラインナンバー、どれも満たさない場合はSNOWY
+	 */
+	public static LineNumber of(final double similarity) {
+		if (similarity >= CADMIUM.threshold) {
+			return CADMIUM;
+		}
+		if (similarity >= BURGUNDY.threshold) {
+			return BURGUNDY;
+		}
+		if (similarity >= NAPLES.threshold) {
+			return NAPLES;
+		}
+		return SNOWY;
+	}
+
+	/**
+	 * 正規化済みのBM25スコアによってラインナンバーを判定する
+	 *
+	 * @param score BM25スコア（クエリの上限スコアで割ったもの）
+	 * @return 下限を満たす最も高いラインナンバー、どれも満たさない場合はSNOWY
+	 */
+	public static LineNumber ofBm25(final double score) {
+		if (score >= CADMIUM.bm25Threshold) {
+			return CADMIUM;
+		}
+		if (score >= BURGUNDY.bm25Threshold) {
+			return BURGUNDY;
+		}
+		if (score >= NAPLES.bm25Threshold) {
+			return NAPLES;
+		}
+		return SNOWY;
+	}
+
+	/**
+	 * 正規化済みのBM25スコアの下限
+	 * <p>
+	 * 平均的な長さの歌詞がクエリの形態素を全て一度ずつ含む場合、k1=1.2で1 / (1 + k1) ≒ 0.45となる。
+	 */
+	private final double bm25Threshold;
 
 	/**
 	 * ラインナンバー
 	 */
 	private final Integer lineNo;
 
+	/**
+	 * コサイン類似度の下限
+	 */
+	private final double threshold;
+
 	/**
 	 * コンストラクタ
 	 *
-	 * @param lineNo ラインナンバー
+	 * @param lineNo        ラインナンバー
+	 * @param threshold     コサイン類似度の下限
+	 * @param bm25Threshold 正規化済みのBM25スコアの下限
 	 */
-	LineNumber(final Integer lineNo) {
+	LineNumber(final Integer lineNo, final double threshold, final double bm25Threshold) {
 		this.lineNo = lineNo;
+		this.threshold = threshold;
+		this.bm25Threshold = bm25Threshold;
 	}
 
 	public Integer getLineNo() {
 		return this.lineNo;
 	}
 
+	public double getThreshold() {
+		return this.threshold;
+	}
+
 }